@@ -1,9 +1,8 @@
 import java.awt.event.*;
 import java.io.File;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.Clip;
-import javax.sound.sampled.DataLine;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 /**
  * Interaction between ClientModel and ClientView classes takes place here. Defines
@@ -15,6 +14,29 @@ public class ClientController {
 	ClientModel model;
 	ClientView view;
 	
+	/**
+	 * Played for messages from others, see NotificationSound
+	 */
+	private NotificationSound sound;
+	
+	/**
+	 * Roughly one frame. Messages that arrive within it are added to the text area at once.
+	 */
+	private static final int FRAME_MILLIS = 16;
+	
+	/**
+	 * Fires once on the Event Dispatch Thread to add the received messages to the
+	 * text area. Set while the timer is about to fire, so that a burst of messages
+	 * starts it only once.
+	 */
+	private Timer refreshTimer;
+	private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+	
+	/**
+	 * Set while the status label is about to be updated, see refreshStatus()
+	 */
+	private final AtomicBoolean statusScheduled = new AtomicBoolean();
+	
 	/**
 	 * Constructs a ClientController object that manages model and view attributes.
 	 * Adds action listeners to the view, sets the title of the main window and displays
@@ -23,28 +45,129 @@ public class ClientController {
 	 * @param v ClientView object
 	 */
 	public ClientController(ClientModel m, ClientView v) {
+		this(m, v, new NotificationSound("alert.wav", 1000));
+	}
+	
+	/**
+	 * Constructs a ClientController object like the other constructor does, with the given
+	 * notification sound
+	 * @param m ClientModel object
+	 * @param v ClientView object
+	 * @param s Sound played for messages from others
+	 */
+	public ClientController(ClientModel m, ClientView v, NotificationSound s) {
 		model = m;
-		view = v;	
+		view = v;
+		sound = s;
 		view.addListener(new MyListener());
 		view.showLogWindow();
 		view.setTitle("Instant Messenger");
-		keepRefreshingTextArea();
+		refreshTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				refreshTextArea();
+			}
+		});
+		refreshTimer.setRepeats(false);
+		view.addScrollListener(new AdjustmentListener() {
+			@Override
+			public void adjustmentValueChanged(AdjustmentEvent e) {
+				if(view.isNearTop())
+					model.requestOlder();
+			}
+		});
+		model.setStatusListener(new Runnable() {
+			@Override
+			public void run() {
+				if(statusScheduled.compareAndSet(false, true)){
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							refreshStatus();
+						}
+					});
+				}
+			}
+		});
+		refreshStatus();
+		model.startReceiving(new Runnable() {
+			@Override
+			public void run() {
+				if(refreshScheduled.compareAndSet(false, true))
+					refreshTimer.start();
+			}
+		});
 	}
 	
 	/**
-	 * Receives a message and adds it to the text area. Plays the notification sound,
-	 * provided that the message added to the text area was not created by the current user.
-	 * Only messages from other peers are indicated with a sound.
+	 * Adds every message received so far to the text area with a single append, so
+	 * that a long history costs one insert and one repaint instead of one per line.
+	 * Pages of older messages, asked for when the user scrolled up, go above everything.
+	 * Plays the notification sound, provided that any of the messages was not
+	 * created by the current user and no notification was played lately. Only messages
+	 * from other peers are indicated with a sound. Runs on the Event Dispatch Thread.
 	 */
-	public void keepRefreshingTextArea(){
-		while(true){
-			String tmp = model.receiveMessage();
-			if(tmp != null){
-				view.setTextArea(tmp);
-
-				if(!getStringUpToChar(tmp, 11, ':').equals(model.getNickname()))
-					playSound("alert.wav");
+	public void refreshTextArea(){
+		refreshScheduled.set(false);
+		StringBuilder text = new StringBuilder();
+		boolean fromOthers = false;
+		ClientModel.Incoming msg;
+		while((msg = model.pollReceived()) != null){
+			if(msg.older){
+				view.prependTextArea(msg.text+"\n");
+				continue;
 			}
+			text.append(msg.text).append('\n');
+			String sender = msg.sender;
+			if(sender == null)
+				sender = getStringUpToChar(msg.text, 11, ':');
+			if(!sender.equals(model.getNickname()))
+				fromOthers = true;
+		}
+		if(text.length() == 0)
+			return;
+		view.appendTextArea(text.toString());
+		if(fromOthers)
+			sound.play();
+	}
+	
+	/**
+	 * Shows whether the Client is connected and how many of the user's messages haven't
+	 * arrived yet, or won't. Runs on the Event Dispatch Thread.
+	 */
+	public void refreshStatus(){
+		statusScheduled.set(false);
+		int state = model.getState();
+		int pending = model.getPending();
+		long failed = model.getFailed();
+		String status;
+		if(state == ClientModel.CONNECTED)
+			status = pending == 0 ? "Connected" : "Sending "+pending+"...";
+		else if(state == ClientModel.DISCONNECTED)
+			status = pending == 0 ? "Reconnecting..." : "Reconnecting, "+pending+" waiting";
+		else
+			status = "Disconnected";
+		if(failed > 0)
+			status += ", "+failed+" not delivered";
+		view.setStatusLabel(status);
+	}
+	
+	/**
+	 * Starts an upload ("/upload <path>") or a download ("/download <name>") typed by
+	 * the user. Downloaded files are saved in the directory "downloads".
+	 * @param command What the user typed
+	 */
+	public void transfer(String command){
+		String arg = command.substring(command.indexOf(' ')+1).trim();
+		if(command.startsWith(Protocol.UPLOAD+" ")){
+			if(!model.upload(new File(arg)))
+				view.appendTextArea("Can't upload "+arg+".\n");
+		}
+		else{
+			File dir = new File("downloads");
+			dir.mkdirs();
+			if(!model.download(arg, new File(dir, arg)))
+				view.appendTextArea("Can't download "+arg+" now.\n");
 		}
 	}
 	
@@ -59,25 +182,6 @@ public class ClientController {
 		view.setNicknameLabel("Logged as: "+nickname);
 	}
 	
-	/**
-	 * Plays a sound after receiving a message
-	 * @param soundName Name of the audio file
-	 */
-	public void playSound(String soundName){
-		try {
-			AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(new File(soundName).getAbsoluteFile());
-			Clip clip = AudioSystem.getClip();
-			DataLine.Info info = new DataLine.Info(Clip.class, audioInputStream.getFormat());
-			clip = (Clip)AudioSystem.getLine(info);
-			clip.open(audioInputStream);
-			clip.start();
-		}
-		catch(Exception ex){
-			System.out.println("Error with playing sound.");
-			ex.printStackTrace( );
-		}
-	}
-	
 	/**
 	 * Class needed for adding action listeners
 	 * @author Lukasz Smigielski
@@ -94,8 +198,12 @@ public class ClientController {
 				if(tmp.equals("")){
 					view.showErrorBoxMessage();
 				}
+				else if(tmp.startsWith(Protocol.UPLOAD+" ") || tmp.startsWith(Protocol.DOWNLOAD+" ")){
+					transfer(tmp);
+					view.setTextField("");
+				}
 				else{
-					model.sendMessage(model.getNickname()+": "+tmp);
+					model.sendMessage(tmp);
 					view.setTextField("");
 					view.getTextField().requestFocusInWindow();
 				}
@@ -142,19 +250,17 @@ public class ClientController {
 	 * @param str Original string
 	 * @param a index of the first character to be included in the return string
 	 * @param c the character indicating end of the part to be returned
-	 * @return Part of the str parameter
+	 * @return Part of the str parameter, an empty String if there is no c after [a],
+	 * e.g. in "(12:34:01) Client no 3 connected."
 	 */
 	public static String getStringUpToChar(String str, int a, Character c){
-		String tmp = null;
-		int i = a+1;
-		if(str.charAt(0) != '(')
+		if(str.isEmpty() || str.charAt(0) != '(')
 			return "smotheing";
-		tmp = Character.toString(str.charAt(a));
-		while(str.charAt(i) != c){
-			tmp += Character.toString(str.charAt(i));
-			i++;
-		}
-		
-		return tmp;
+		if(a >= str.length())
+			return "";
+		int end = str.indexOf(c, a+1);
+		if(end < 0)
+			return "";
+		return str.substring(a, end);
 	}
 }//Class ClientController
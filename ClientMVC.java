@@ -5,9 +5,22 @@
  *
  */
 public class ClientMVC {
+	/**
+	 * @param args "--transcript-lines=N" sets how many lines of the conversation are
+	 * kept in memory, "--alert-interval-ms=N" the shortest time between two notification
+	 * sounds
+	 */
 	public static void main(String[] args) throws Exception {
+		int transcriptLines = 10000;
+		long alertIntervalMillis = 1000;
+		for(String arg : args){
+			if(arg.startsWith("--transcript-lines="))
+				transcriptLines = Integer.parseInt(arg.substring("--transcript-lines=".length()));
+			else if(arg.startsWith("--alert-interval-ms="))
+				alertIntervalMillis = Long.parseLong(arg.substring("--alert-interval-ms=".length()));
+		}
 		ClientModel m = new ClientModel();
-		ClientView v = new ClientView();
-		ClientController c = new ClientController(m, v);
+		ClientView v = new ClientView(transcriptLines);
+		ClientController c = new ClientController(m, v, new NotificationSound("alert.wav", alertIntervalMillis));
 	}
-}
\ No newline at end of file
+}
@@ -1,75 +1,1095 @@
-import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Includes all the data and methods needed to communicate with the Server
+ *
+ * Messages are not written by whoever sends them but put into the outbox, from which
+ * a writer thread takes everything that has piled up and writes it with a single write,
+ * so the GUI never waits for the network. A sent message is kept until the Server sends
+ * it back to its room, which is how the Client knows it has arrived. When the connection
+ * breaks, the thread started by startReceiving() connects again, waiting longer after
+ * every failed attempt, and the messages not known to have arrived are sent again before
+ * anything newer. A message the Server got just before the connection broke may so
+ * arrive twice; none is lost while the Client runs.
+ *
+ * With the binary format, a file can be uploaded and another downloaded at the same
+ * time as chatting, see FileStore. The writer thread sends the next chunk of the upload
+ * only when the outbox is empty, at the pace the Server asked for, so messages go out
+ * without waiting for the file. Both transfers go on from where they stopped after
+ * reconnecting.
+ *
+ * On the first connect only the newest FIRST_PAGE messages are asked for, about a
+ * screenful. Older ones are fetched a page at a time with requestOlder() when the user
+ * scrolls up to them, see Protocol.HISTORY.
+ *
  * @author Lukasz Smigielski
  *
  */
 public class ClientModel {
-	
+
+	/**
+	 * Values of getState()
+	 */
+	public static final int CONNECTED = 0;
+	public static final int DISCONNECTED = 1;
+	public static final int CLOSED = 2;
+
 	private static final int port = 9999;
-	private  Socket socket;
-	
+
 	/**
-	 * For receiving messages
+	 * Waits between attempts to connect again: the first one, doubled after every failure
+	 * up to the last one. Each wait is cut by a random part of up to a half, so clients
+	 * dropped together don't come back together.
 	 */
-	private  Scanner input;
-	
+	private static final long FIRST_RETRY_MILLIS = 250;
+	private static final long MAX_RETRY_MILLIS = 30000;
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
 	/**
-	 * For sending messages
+	 * The most messages written at once, and the most kept while waiting for the Server
+	 * to send them back
 	 */
-	private  PrintStream ps;
-	
+	private static final int BATCH = 64;
+	private static final int MAX_UNACKNOWLEDGED = 1024;
+
+	/**
+	 * Messages asked for on the first connect, and by every requestOlder()
+	 */
+	private static final int FIRST_PAGE = 50;
+	private static final int PAGE = 100;
+
+	private final Transport transport;
+	private final String host;
+	private final int serverPort;
+
+	/**
+	 * The connection and the fields below it are guarded by this, see connect()
+	 */
+	private  Transport.Connection connection;
+	private int state = DISCONNECTED;
+
+	/**
+	 * Bumped on every new connection, so a failed write on an old one is not taken for
+	 * a failure of the new one
+	 */
+	private long generation = 0;
+
+	/**
+	 * Messages waiting for the writer thread, and messages written but not yet seen
+	 * coming back from the Server, oldest first
+	 */
+	private final ArrayDeque<Pending> outbox = new ArrayDeque<Pending>();
+	private final ArrayDeque<Pending> unacknowledged = new ArrayDeque<Pending>();
+	private Thread writer;
+
+	/**
+	 * Messages that will not arrive: a newer one came back before them, or too many were
+	 * waiting
+	 */
+	private long failed = 0;
+
+	/**
+	 * The file being uploaded and the one being downloaded, null if none. Guarded by this.
+	 */
+	private FileTransfer upload;
+	private volatile FileTransfer download;
+
+	/**
+	 * Called whenever the state, getPending() or getFailed() change, see setStatusListener()
+	 */
+	private volatile Runnable statusListener;
+
+	/**
+	 * For receiving messages. Whatever arrives is decoded straight from this buffer,
+	 * lines as well as frames.
+	 */
+	private  ReadableByteChannel input;
+	private  ByteBuffer inputBuffer = ByteBuffer.allocate(8192);
+
+	/**
+	 * For sending messages, written by the writer thread only
+	 */
+	private  OutputStream output;
+
 	/**
 	 * User's nickname set after launch of the application
 	 */
-	private String nickname;
-	
+	private volatile String nickname;
+
+	/**
+	 * Sequence number of the newest message of the main room received, -1 if none.
+	 * Sent to the Server on connect so that it sends only the messages this Client
+	 * hasn't seen.
+	 */
+	private long lastSeen = -1;
+
+	/**
+	 * Sequence number of the oldest message of the main room received, -1 if none
+	 */
+	private volatile long firstSeen = -1;
+
+	/**
+	 * The number the page asked for with requestOlder() ends before, -1 if none has
+	 * been asked for. Messages numbered below it are collected in page, used by the
+	 * thread that receives messages only, until the Server's answer ends the page.
+	 */
+	private volatile long pageBefore = -1;
+	private final ArrayList<String> page = new ArrayList<String>();
+
+	/**
+	 * True if the last String returned by receiveMessage() is a page of older messages
+	 */
+	private boolean lastOlder;
+
+	/**
+	 * True if this Client asks for the binary format, see Frames
+	 */
+	private boolean binary;
+
+	/**
+	 * Becomes true when the Server has agreed to the binary format. Until then both
+	 * sides use lines.
+	 */
+	private volatile boolean binaryAgreed = false;
+
+	/**
+	 * Nicknames of the sender numbers used in CHAT frames
+	 */
+	private HashMap<Integer, String> senders = new HashMap<Integer, String>();
+
+	/**
+	 * Nickname of the author of the last received message if the binary format told it,
+	 * null otherwise
+	 */
+	private String lastSender;
+
 	/**
-	 * Creates connection between this Client and the Server
+	 * Messages received by the reader thread and not yet taken by the GUI, see
+	 * startReceiving()
+	 */
+	private final Queue<Incoming> received = new ConcurrentLinkedQueue<Incoming>();
+
+	/**
+	 * A received message as the GUI shows it, with its author if known
+	 */
+	public static class Incoming {
+		public final String text;
+
+		/**
+		 * Nickname of the author if the binary format told it, null otherwise
+		 */
+		public final String sender;
+
+		/**
+		 * True for a page of older messages, one line each, which goes above all the
+		 * others, see requestOlder()
+		 */
+		public final boolean older;
+
+		Incoming(String text, String sender) {
+			this(text, sender, false);
+		}
+
+		Incoming(String text, String sender, boolean older) {
+			this.text = text;
+			this.sender = sender;
+			this.older = older;
+		}
+	}//class Incoming
+
+	/**
+	 * A message waiting to be written, or to come back from the Server
+	 */
+	private static class Pending {
+		final String nickname;
+		final String text;
+
+		/**
+		 * false for commands, which the Server doesn't send back
+		 */
+		final boolean tracked;
+
+		/**
+		 * @param nickname Nickname to sign the message with, null to send the text as it is
+		 * @param text The text
+		 */
+		Pending(String nickname, String text) {
+			this.nickname = nickname;
+			this.text = text;
+			this.tracked = nickname != null && !text.startsWith("/");
+		}
+	}//class Pending
+
+	/**
+	 * A file being uploaded or downloaded
+	 */
+	private static class FileTransfer {
+		final String name;
+		final File file;
+		FileChannel channel;
+		long size;
+		long position = 0;
+
+		/**
+		 * For an upload: true once the Server has told where to go on from, and the
+		 * pace it accepts, null for any
+		 */
+		boolean started = false;
+		TokenBucket limit;
+
+		FileTransfer(String name, File file, long size) {
+			this.name = name;
+			this.file = file;
+			this.size = size;
+		}
+
+		void close() {
+			try {
+				if(channel != null)
+					channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}//class FileTransfer
+
+	/**
+	 * Creates connection between this Client and the Server, using the binary format
 	 */
 	public ClientModel() {
+		this(true);
+	}
+
+	/**
+	 * Creates connection between this Client and the Server. If the Server can't be
+	 * reached, the Client starts disconnected and startReceiving() keeps trying.
+	 * @param binary true for the binary format, false for lines of text
+	 */
+	public ClientModel(boolean binary) {
+		this.binary = binary;
+		this.transport = TcpTransport.INSTANCE;
+		this.host = "127.0.0.1";
+		this.serverPort = port;
 		try {
-			socket = new Socket("127.0.0.1", port);
-			input = new Scanner(socket.getInputStream());
-			ps = new PrintStream(socket.getOutputStream());
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
+			connect();
+		} catch (IOException e) {
+			System.out.println("Can't connect to the Server: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates connection between this Client and a Server anywhere, e.g. for LoadGenerator
+	 * @param host Host of the Server
+	 * @param port Port of the Server
+	 * @param binary true for the binary format, false for lines of text
+	 * @throws IOException if the Server can't be reached
+	 */
+	public ClientModel(String host, int port, boolean binary) throws IOException {
+		this(TcpTransport.INSTANCE, host, port, binary);
+	}
+
+	/**
+	 * Creates connection between this Client and a Server through a transport, e.g.
+	 * LoopbackTransport for a Server in the same process
+	 * @param transport How to reach the Server
+	 * @param host Host of the Server
+	 * @param port Port of the Server
+	 * @param binary true for the binary format, false for lines of text
+	 * @throws IOException if the Server can't be reached
+	 */
+	public ClientModel(Transport transport, String host, int port, boolean binary) throws IOException {
+		this.binary = binary;
+		this.transport = transport;
+		this.host = host;
+		this.serverPort = port;
+		connect();
+	}
+
+	/**
+	 * Opens a new connection and says "/sync" on it. Messages not known to have arrived
+	 * go back to the front of the outbox, to be written on the new connection first,
+	 * right after claiming the nickname again and asking to go on with the transfers.
+	 * Called by the constructor and then by the thread that receives messages only.
+	 */
+	private void connect() throws IOException {
+		Transport.Connection s = transport.connect(host, serverPort, CONNECT_TIMEOUT_MILLIS);
+		try {
+			OutputStream out = s.getOutputStream();
+			out.write((Protocol.sync(lastSeen, binary, lastSeen < 0 ? FIRST_PAGE : -1)+"\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			input = Channels.newChannel(s.getInputStream());
+			inputBuffer.clear();
+			inputBuffer.flip();
+			binaryAgreed = false;
+			senders.clear();
+			page.clear();
+			synchronized(this){
+				if(state == CLOSED)
+					throw new IOException("Closed");
+				connection = s;
+				output = out;
+				generation++;
+				state = CONNECTED;
+				while(!unacknowledged.isEmpty()){
+					outbox.addFirst(unacknowledged.pollLast());
+				}
+				if(pageBefore >= 0)
+					outbox.addFirst(new Pending(nickname, Protocol.history(pageBefore, PAGE)));
+				if(download != null)
+					outbox.addFirst(new Pending(nickname, Protocol.DOWNLOAD+" "+download.name+" "+download.position));
+				if(upload != null){
+					upload.started = false;
+					outbox.addFirst(new Pending(nickname, Protocol.UPLOAD+" "+upload.name+" "+upload.size));
+				}
+				if(nickname != null)
+					outbox.addFirst(new Pending(nickname, Protocol.nick(nickname)));
+				notifyAll();
+			}
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		statusChanged();
+	}
+
+	/**
+	 * Marks a connection as broken and closes it, which wakes up a receiveMessage()
+	 * blocked on it
+	 * @param brokenGeneration The generation of the connection
+	 */
+	private void connectionLost(long brokenGeneration) {
+		synchronized(this){
+			if(brokenGeneration != generation || state != CONNECTED)
+				return;
+			state = DISCONNECTED;
+			closeConnection();
+		}
+		statusChanged();
+	}
+
+	/**
+	 * Connects again, waiting longer after every failed attempt
+	 * @return false if the Client has been closed in the meantime
+	 */
+	private boolean reconnect() {
+		long delay = FIRST_RETRY_MILLIS;
+		Random random = new Random();
+		while(true){
+			synchronized(this){
+				long wait = delay - (long)(random.nextDouble() * delay / 2);
+				long until = System.currentTimeMillis() + wait;
+				while(state != CLOSED && wait > 0){
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						return false;
+					}
+					wait = until - System.currentTimeMillis();
+				}
+				if(state == CLOSED)
+					return false;
+			}
+			try {
+				connect();
+				return true;
+			} catch (IOException e) {
+				delay = Math.min(delay * 2, MAX_RETRY_MILLIS);
+			}
+		}
+	}
+
+	/**
+	 * Closes the connection for good. A receiveMessage() blocked in another thread returns
+	 * null, the writer thread ends and sendMessage() refuses new messages.
+	 */
+	public void close() {
+		synchronized(this){
+			state = CLOSED;
+			closeConnection();
+			notifyAll();
+		}
+		statusChanged();
+	}
+
+	private void closeConnection() {
+		try {
+			if(connection != null)
+				connection.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
-	
+
 	/**
-	 * Receives a single message from the Server
-	 * @return String representing a received message
+	 * Receives a single message from the Server. Remembers its sequence number and
+	 * returns it without the number. Blocks until a message arrives. A page of older
+	 * messages asked for with requestOlder() is returned as one String, a line each.
+	 * @return String representing a received message, null if the connection is closed
 	 */
 	public String receiveMessage(){
-		String line = null;		
-		if(input.hasNext()){
-			line = input.nextLine();
+		if(input == null)
+			return null;
+		try {
+			while(true){
+				String line;
+				lastOlder = false;
+				if(binaryAgreed){
+					int length = Frames.available(inputBuffer);
+					if(length < 0){
+						if(!fill())
+							return null;
+						continue;
+					}
+					line = decodeFrame(length);
+				}
+				else{
+					line = nextLine();
+					if(line == null){
+						if(!fill())
+							return null;
+						continue;
+					}
+					if(binary && line.equals(Protocol.BINARY_ACK)){
+						binaryAgreed = true;
+						continue;
+					}
+					lastSender = null;
+					line = decodeLine(line);
+				}
+				if(line != null)
+					return line;
+			}//while
+		} catch (IOException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes the frame at the position of the input buffer
+	 * @param length Length of the frame
+	 * @return The message to show, or null for frames that only carry data
+	 */
+	private String decodeFrame(int length) {
+		ByteBuffer frame = inputBuffer.duplicate();
+		frame.position(inputBuffer.position() + Frames.HEADER);
+		frame.limit(frame.position() + length);
+		inputBuffer.position(frame.limit());
+
+		byte type = frame.get();
+		if(type == Frames.CHAT){
+			long seq = frame.getLong();
+			long timestamp = frame.getLong();
+			int senderId = frame.getInt();
+			String body = Frames.utf8(frame, frame.remaining());
+			lastSender = senderId < 0 ? null : senders.get(senderId);
+			if(isOlder(seq)){
+				page.add(new Message(seq, timestamp, lastSender, body).toString());
+				return null;
+			}
+			seen(seq);
+			acknowledge(lastSender, body);
+			return new Message(seq, timestamp, lastSender, body).toString();
+		}
+		if(type == Frames.ROOM_CHAT){
+			frame.getLong();
+			long timestamp = frame.getLong();
+			int senderId = frame.getInt();
+			String room = Frames.utf8(frame, frame.getInt());
+			String body = Frames.utf8(frame, frame.remaining());
+			lastSender = senderId < 0 ? null : senders.get(senderId);
+			acknowledge(lastSender, body);
+			return new Message(-1, timestamp, lastSender, body, room).toString();
+		}
+		if(type == Frames.SENDER){
+			int senderId = frame.getInt();
+			senders.put(senderId, Frames.utf8(frame, frame.remaining()));
+			return null;
+		}
+		if(type == Frames.TEXT){
+			lastSender = null;
+			return decodeLine(Frames.utf8(frame, frame.remaining()));
+		}
+		if(type == Frames.FILE_CHUNK){
+			lastSender = null;
+			return receiveChunk(frame.getLong(), frame);
+		}
+		return null;
+	}
+
+	/**
+	 * Handles a line of text: strips the sequence number of a tagged line, answers "/ping"
+	 * and turns commands of the Server into something readable
+	 */
+	private String decodeLine(String line) {
+		if(line.equals(Protocol.PING)){
+			pong();
+			return null;
+		}
+		String[] args = Protocol.argsOf(Protocol.UPLOAD, line);
+		if(args != null && args.length == 3)
+			return uploadStarted(args[0], Protocol.count(args[1]), Protocol.count(args[2]));
+		args = Protocol.argsOf(Protocol.FILE, line);
+		if(args != null && args.length == 3)
+			return downloadStarted(args[0], Protocol.count(args[1]), Protocol.count(args[2]));
+		args = Protocol.argsOf(Protocol.HISTORY, line);
+		if(args != null && args.length == 2)
+			return pageEnded(Protocol.count(args[0]));
+		long seq = Protocol.seqOf(line);
+		if(seq >= 0 && isOlder(seq)){
+			page.add(Protocol.untag(line));
+			return null;
+		}
+		if(seq >= 0){
+			seen(seq);
+			line = Protocol.untag(line);
+		}
+		acknowledge(line);
+		if(seq >= 0)
+			return line;
+		if(line.startsWith(Protocol.TRUNCATED+" ")){
+			return Protocol.truncated(Protocol.TEXT, Long.parseLong(line.substring(Protocol.TRUNCATED.length()+1)));
 		}
 		return line;
 	}
-	
+
+	/**
+	 * Remembers the sequence number of a message that isn't part of a page
+	 */
+	private void seen(long seq) {
+		lastSeen = seq;
+		if(firstSeen < 0)
+			firstSeen = seq;
+	}
+
+	/**
+	 * Tells if a message belongs to the page asked for with requestOlder()
+	 */
+	private boolean isOlder(long seq) {
+		long before = pageBefore;
+		return before >= 0 && seq < before;
+	}
+
+	/**
+	 * Handles the Server's answer "/history <from> <to>", which comes after the messages
+	 * of the page
+	 * @param from Number of the oldest message of the page
+	 * @return The page, a line each, or null if it's empty
+	 */
+	private String pageEnded(long from) {
+		synchronized(this){
+			if(pageBefore < 0)
+				return null;
+			if(from >= 0 && from < firstSeen)
+				firstSeen = from;
+			pageBefore = -1;
+		}
+		if(page.isEmpty())
+			return null;
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < page.size(); i++){
+			if(i > 0)
+				text.append('\n');
+			text.append(page.get(i));
+		}
+		page.clear();
+		lastOlder = true;
+		return text.toString();
+	}
+
+	/**
+	 * Asks the Server for a page of the messages older than the oldest one received,
+	 * unless a page has been asked for already or there are none. The page comes as a
+	 * single Incoming with older set, see startReceiving(). Called when the user scrolls
+	 * up to the oldest message.
+	 * @return false if nothing was asked for
+	 */
+	public boolean requestOlder(){
+		long before;
+		synchronized(this){
+			before = firstSeen;
+			if(before <= 0 || pageBefore >= 0 || state == CLOSED)
+				return false;
+			pageBefore = before;
+		}
+		return enqueue(new Pending(nickname, Protocol.history(before, PAGE)));
+	}
+
+	/**
+	 * Cuts a complete line off the input buffer
+	 * @return The line without '\n', or null if there is no complete line yet
+	 */
+	private String nextLine() {
+		byte[] array = inputBuffer.array();
+		int start = inputBuffer.position();
+		for(int i = start; i < inputBuffer.limit(); i++){
+			if(array[i] == '\n'){
+				int end = i;
+				if(end > start && array[end-1] == '\r')
+					end--;
+				inputBuffer.position(i+1);
+				return new String(array, start, end-start, StandardCharsets.UTF_8);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads more bytes into the input buffer, making it bigger if it's full
+	 * @return false if the connection is closed
+	 */
+	private boolean fill() throws IOException {
+		inputBuffer.compact();
+		if(!inputBuffer.hasRemaining()){
+			ByteBuffer bigger = ByteBuffer.allocate(inputBuffer.capacity()*2);
+			inputBuffer.flip();
+			bigger.put(inputBuffer);
+			inputBuffer = bigger;
+		}
+		int n = input.read(inputBuffer);
+		inputBuffer.flip();
+		return n >= 0;
+	}
+
+	/**
+	 * Starts a thread that receives messages and puts them into a queue, so whoever shows
+	 * them doesn't wait for the Server and can take many at once with pollReceived().
+	 * When the connection is closed, one more message saying so is queued and the thread ends.
+	 * @param onReceived Called by the thread after every queued message
+	 */
+	public void startReceiving(final Runnable onReceived){
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true){
+					String msg;
+					while((msg = receiveMessage()) != null){
+						received.add(new Incoming(msg, lastSender, lastOlder));
+						onReceived.run();
+					}
+					long broken;
+					synchronized(ClientModel.this){
+						if(state == CLOSED)
+							break;
+						broken = generation;
+					}
+					connectionLost(broken);
+					received.add(new Incoming("Not connected to the Server, trying again.", null));
+					onReceived.run();
+					if(!reconnect())
+						break;
+					received.add(new Incoming("Connected to the Server.", null));
+					onReceived.run();
+				}
+				received.add(new Incoming("Disconnected from the Server.", null));
+				onReceived.run();
+			}
+		}, "receiver");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Takes the oldest message received by the thread started by startReceiving()
+	 * @return The message, or null if there is none right now
+	 */
+	public Incoming pollReceived(){
+		return received.poll();
+	}
+
 	/**
-	 * Sends a single message
+	 * Gets the sequence number of the newest message received
+	 * @return The number, -1 if no message has been received
+	 */
+	public long getLastSeen(){
+		return lastSeen;
+	}
+
+	/**
+	 * Gets the author of the last message returned by receiveMessage()
+	 * @return The nickname, or null if it's a message of the Server or the text format
+	 * doesn't tell
+	 */
+	public String getLastSender(){
+		return lastSender;
+	}
+
+	/**
+	 * Queues a single message signed with the nickname. Never waits for the network.
 	 * @param msg The message to send
+	 * @return false if the Client has been closed
+	 */
+	public boolean sendMessage(String msg){
+		if(!enqueue(new Pending(nickname, msg)))
+			return false;
+		statusChanged();
+		return true;
+	}
+
+	/**
+	 * Answers the Server's "/ping", from the thread that receives messages
+	 */
+	private void pong() {
+		enqueue(new Pending(null, Protocol.PONG));
+	}
+
+	private synchronized boolean enqueue(Pending msg) {
+		if(state == CLOSED)
+			return false;
+		outbox.add(msg);
+		if(writer == null)
+			startWriter();
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Starts the thread that writes the outbox. Whatever has piled up while it was
+	 * writing, up to BATCH messages, goes out with the next single write.
+	 */
+	private void startWriter() {
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ByteArrayOutputStream batch = new ByteArrayOutputStream();
+				while(true){
+					OutputStream out;
+					long batchGeneration;
+					FileTransfer chunkOf = null;
+					long chunkFrom = 0;
+					synchronized(ClientModel.this){
+						while(true){
+							if(state == CLOSED)
+								return;
+							long wait = -1;
+							if(state == CONNECTED){
+								if(!outbox.isEmpty())
+									break;
+								wait = uploadDue();
+								if(wait == 0)
+									break;
+							}
+							try {
+								if(wait < 0)
+									ClientModel.this.wait();
+								else
+									ClientModel.this.wait(Math.max(1, wait / 1000000));
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+						if(outbox.isEmpty()){
+							chunkOf = upload;
+							chunkFrom = upload.position;
+						}
+						for(int i = 0; i < BATCH && !outbox.isEmpty(); i++){
+							Pending msg = outbox.poll();
+							encode(msg, batch);
+							if(msg.tracked)
+								unacknowledged.add(msg);
+						}
+						while(unacknowledged.size() > MAX_UNACKNOWLEDGED){
+							unacknowledged.poll();
+							failed++;
+						}
+						out = output;
+						batchGeneration = generation;
+					}
+					if(chunkOf != null && !readChunk(chunkOf, chunkFrom, batchGeneration, batch))
+						continue;
+					try {
+						batch.writeTo(out);
+						out.flush();
+					} catch (IOException e) {
+						// the messages are in unacknowledged and go out again after reconnecting
+						connectionLost(batchGeneration);
+					}
+					batch.reset();
+					statusChanged();
+				}//while
+			}//run()
+		}, "writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Asks if the next chunk of the upload may be sent, called with the lock held
+	 * @return 0 if it may be sent now, and then it must be, the nanoseconds to wait,
+	 * or -1 if there is nothing to send
+	 */
+	private long uploadDue() {
+		if(upload == null || !upload.started || !binaryAgreed || upload.position >= upload.size)
+			return -1;
+		return upload.limit == null ? 0 : upload.limit.tryTake(Math.min(Frames.CHUNK_BYTES, upload.size - upload.position));
+	}
+
+	/**
+	 * Reads the next chunk of the upload into a FILE_CHUNK frame, without holding the
+	 * lock, and moves the upload past it
+	 * @return false if the upload has changed meanwhile and the chunk is not to be sent
+	 */
+	private boolean readChunk(FileTransfer t, long from, long chunkGeneration, ByteArrayOutputStream batch) {
+		byte[] data = new byte[(int) Math.min(Frames.CHUNK_BYTES, t.size - from)];
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		try {
+			while(buf.hasRemaining()){
+				if(t.channel.read(buf, from + buf.position()) < 0)
+					throw new EOFException();
+			}
+		} catch (IOException e) {
+			synchronized(this){
+				if(upload == t)
+					upload = null;
+			}
+			t.close();
+			received.add(new Incoming("Can't read "+t.file+", the upload has stopped.", null));
+			return false;
+		}
+		synchronized(this){
+			if(upload != t || t.position != from || generation != chunkGeneration)
+				return false;
+			t.position = from + data.length;
+		}
+		byte[] frame = Frames.fileChunk(from, data, data.length);
+		batch.write(frame, 0, frame.length);
+		return true;
+	}
+
+	/**
+	 * Starts uploading a file, which then goes on by itself. Any upload going on is given
+	 * up. Needs the binary format.
+	 * @param file The file, uploaded under its own name
+	 * @return false if the file can't be uploaded
+	 */
+	public boolean upload(File file){
+		if(!binary || !Protocol.isFileName(file.getName()) || !file.isFile())
+			return false;
+		FileTransfer t = new FileTransfer(file.getName(), file, file.length());
+		try {
+			t.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			return false;
+		}
+		FileTransfer old;
+		synchronized(this){
+			old = upload;
+			upload = t;
+		}
+		if(old != null)
+			old.close();
+		return enqueue(new Pending(nickname, Protocol.UPLOAD+" "+t.name+" "+t.size));
+	}
+
+	/**
+	 * Handles the Server's answer to "/upload", which comes again when the upload is
+	 * complete. From the thread that receives messages.
+	 */
+	private String uploadStarted(String name, long offset, long bytesPerSecond) {
+		synchronized(this){
+			if(upload == null || !upload.name.equals(name) || offset < 0)
+				return null;
+			if(offset >= upload.size){
+				upload.close();
+				upload = null;
+				return "Uploaded "+name+".";
+			}
+			upload.position = Math.min(offset, upload.size);
+			upload.limit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, Math.max(bytesPerSecond / 10, Frames.CHUNK_BYTES)) : null;
+			upload.started = true;
+			notifyAll();
+		}
+		return offset > 0 ? "Uploading "+name+" from byte "+offset+"..." : "Uploading "+name+"...";
+	}
+
+	/**
+	 * Starts downloading a file, which then goes on by itself. If the file exists, it's
+	 * taken as the beginning of the download and only the rest is downloaded. Needs the
+	 * binary format.
+	 * @param name Name of the file on the Server
+	 * @param to Where to save it
+	 * @return false if a download is going on already
+	 */
+	public boolean download(String name, File to){
+		if(!binary || !Protocol.isFileName(name))
+			return false;
+		FileTransfer t = new FileTransfer(name, to, -1);
+		t.position = to.length();
+		synchronized(this){
+			if(download != null)
+				return false;
+			download = t;
+		}
+		return enqueue(new Pending(nickname, Protocol.DOWNLOAD+" "+name+" "+t.position));
+	}
+
+	/**
+	 * Handles the Server's answer to "/download", from the thread that receives messages
+	 */
+	private String downloadStarted(String name, long size, long offset) {
+		FileTransfer t = download;
+		if(t == null || !t.name.equals(name) || size < 0 || offset < 0)
+			return null;
+		try {
+			if(t.channel == null)
+				t.channel = FileChannel.open(t.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			t.channel.truncate(offset);
+		} catch (IOException e) {
+			downloadEnded(t);
+			return "Can't write "+t.file+".";
+		}
+		t.size = size;
+		t.position = offset;
+		if(offset == size){
+			downloadEnded(t);
+			return "Downloaded "+name+" to "+t.file+".";
+		}
+		return offset > 0 ? "Downloading "+name+" from byte "+offset+"..." : "Downloading "+name+"...";
+	}
+
+	/**
+	 * Writes a chunk of the download to the file
+	 * @return What to show, null for nothing
+	 */
+	private String receiveChunk(long offset, ByteBuffer data) {
+		FileTransfer t = download;
+		if(t == null || t.channel == null || offset != t.position)
+			return null;
+		try {
+			while(data.hasRemaining()){
+				t.position += t.channel.write(data, t.position);
+			}
+		} catch (IOException e) {
+			downloadEnded(t);
+			return "Can't write "+t.file+".";
+		}
+		if(t.position < t.size)
+			return null;
+		downloadEnded(t);
+		return "Downloaded "+t.name+" to "+t.file+".";
+	}
+
+	private void downloadEnded(FileTransfer t) {
+		synchronized(this){
+			if(download == t)
+				download = null;
+		}
+		t.close();
+	}
+
+	/**
+	 * Encodes a message the way the Server currently expects it, a frame or a line
+	 */
+	private void encode(Pending msg, ByteArrayOutputStream batch) {
+		byte[] bytes;
+		if(msg.nickname == null)
+			bytes = (msg.text+"\n").getBytes(StandardCharsets.UTF_8);
+		else if(binaryAgreed)
+			bytes = Frames.send(msg.nickname, msg.text);
+		else
+			bytes = (msg.nickname+": "+msg.text+"\n").getBytes(StandardCharsets.UTF_8);
+		batch.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Takes a message of this Client that came back from the Server as arrived. The
+	 * Server keeps the order of a client's messages, so older ones still waiting will
+	 * never come back.
+	 * @param sender Nickname of the author
+	 * @param body Text of the message
+	 */
+	private void acknowledge(String sender, String body) {
+		if(sender == null || !sender.equals(nickname))
+			return;
+		synchronized(this){
+			boolean found = false;
+			for(Pending msg : unacknowledged){
+				if(msg.text.trim().equals(body.trim())){
+					found = true;
+					break;
+				}
+			}
+			if(!found)
+				return;
+			while(!unacknowledged.poll().text.trim().equals(body.trim())){
+				failed++;
+			}
+		}
+		statusChanged();
+	}
+
+	/**
+	 * Takes a line of text as arrived if it's a message of this Client, e.g.
+	 * "(12:34:01) Lukasz: Example message" or "[java] (12:34:01) Lukasz: Example message"
+	 */
+	private void acknowledge(String line) {
+		if(line.startsWith("["))
+			line = line.substring(line.indexOf("] ")+2);
+		if(!line.startsWith("(") || nickname == null)
+			return;
+		line = line.substring(line.indexOf(") ")+2);
+		if(line.startsWith(nickname+": "))
+			acknowledge(nickname, line.substring(nickname.length()+2));
+	}
+
+	private void statusChanged() {
+		Runnable listener = statusListener;
+		if(listener != null)
+			listener.run();
+	}
+
+	/**
+	 * Sets what is called whenever getState(), getPending() or getFailed() change. It's
+	 * called by the Client's own threads as well as by sendMessage().
+	 * @param listener The listener, null for none
+	 */
+	public void setStatusListener(Runnable listener){
+		statusListener = listener;
+	}
+
+	/**
+	 * Tells if the Client is connected
+	 * @return CONNECTED, DISCONNECTED or CLOSED
+	 */
+	public synchronized int getState(){
+		return state;
+	}
+
+	/**
+	 * Gets the number of messages not yet known to have arrived, written or not
+	 * @return The number
 	 */
-	public void sendMessage(String msg){
-		ps.println(msg);
+	public synchronized int getPending(){
+		return outbox.size() + unacknowledged.size();
 	}
-	
+
 	/**
-	 * Sets the nickname
+	 * Gets the number of messages that will not arrive
+	 * @return The number, since the Client started
+	 */
+	public synchronized long getFailed(){
+		return failed;
+	}
+
+	/**
+	 * Sets the nickname and claims it on the Server, now and after every reconnect
 	 * @param par the new nickname
 	 */
 	public void setNickname(String par){
 		nickname = par;
+		enqueue(new Pending(par, Protocol.nick(par)));
 	}
-	
+
 	/**
 	 * Gets the nickname of the Client
 	 * @return Nickname String
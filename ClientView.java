@@ -4,7 +4,6 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import javax.imageio.ImageIO;
 import javax.swing.*;
-import javax.swing.text.DefaultCaret;
 
 /**
  * GUI for Client application. Creates three windows present in the application:
@@ -30,26 +29,40 @@ public class ClientView extends JFrame {
 	
 	//main window's elements
 	private JLabel nicknameLabel = new JLabel("[nickname]");
+	private JLabel statusLabel = new JLabel("", SwingConstants.RIGHT);
 	private JTextField textField = new JTextField();
-	private JTextArea textArea = new JTextArea();
-	private JScrollPane scrollPane = new JScrollPane(textArea);
+	private TranscriptView textArea;
+	private JScrollPane scrollPane;
 	private JButton sendButton = new JButton(new ImageIcon(getEnvelopeImage()));
 	private JButton emojiButton = new JButton(new ImageIcon(getEmojiImage()));
 	
+	/**
+	 * Creates the main window of the program, keeping up to 10000 lines of the conversation
+	 * in memory
+	 */
+	public ClientView(){
+		this(10000);
+	}
+	
 	/**
 	 * Creates the main window of the program. Forces the focus on the text field
 	 * so that you don't have to click on it every time you send a message.
 	 * Makes the text area to show the latest message on the bottom, so that you always see it
 	 * and don't have to scroll down. And many more tasks.
+	 * @param transcriptLines The most lines of the conversation kept in memory, older
+	 * ones are kept in a file, see Transcript
 	 */
-	public ClientView(){
+	public ClientView(int transcriptLines){
+		textArea = new TranscriptView(transcriptLines);
+		scrollPane = new JScrollPane(textArea);
 		this.setSize(400, 320);
 		this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		this.setLayout(null);
 		this.setResizable(false);
 		this.setVisible(true);
 
-		nicknameLabel.setBounds(25, 0, 300, 25);
+		nicknameLabel.setBounds(25, 0, 200, 25);
+		statusLabel.setBounds(225, 0, 150, 25);
 		textField.setBounds(25, 260, 260, 25);
 		scrollPane.setBounds(25,20,350,220);
 		scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
@@ -66,15 +79,11 @@ public class ClientView extends JFrame {
 		emojiButton.setToolTipText("Insert an emoji");
 		textArea.setToolTipText("Messaging story");
 		
-		DefaultCaret caret = (DefaultCaret) textArea.getCaret();
-		caret.setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE); 
-		textArea.setEditable(false);
-		textArea.setLineWrap(true);
-		textArea.setWrapStyleWord(true);
 		this.add(textField);
 		this.add(sendButton);
 		this.add(emojiButton);
 		this.add(nicknameLabel);
+		this.add(statusLabel);
 		getContentPane().add(scrollPane);
 		textField.requestFocusInWindow();
 		
@@ -126,7 +135,28 @@ public class ClientView extends JFrame {
 		return textField.getText();
 	}
 	public void setTextArea(String line){
-		textArea.append(line+"\n");
+		textArea.addLine(line);
+	}
+	/**
+	 * Adds many lines to the text area at once
+	 * @param lines The lines, each ending with '\n'
+	 */
+	public void appendTextArea(String lines){
+		textArea.append(lines);
+	}
+	/**
+	 * Adds older lines above everything in the text area, without moving what is shown
+	 * @param lines The lines, oldest first, each ending with '\n'
+	 */
+	public void prependTextArea(String lines){
+		textArea.prepend(lines);
+	}
+	/**
+	 * Tells if the text area is scrolled to less than a screen from its top
+	 */
+	public boolean isNearTop(){
+		JScrollBar bar = scrollPane.getVerticalScrollBar();
+		return bar.getValue() < bar.getVisibleAmount();
 	}
 	public void setTextField(String e){
 		textField.setText(e);
@@ -134,6 +164,9 @@ public class ClientView extends JFrame {
 	public void setNicknameLabel(String par){
 		nicknameLabel.setText(par);
 	}
+	public void setStatusLabel(String par){
+		statusLabel.setText(par);
+	}
 	/**
 	 * Adds text to the existing text in the textField
 	 * @param e The text you might want to add
@@ -165,6 +198,14 @@ public class ClientView extends JFrame {
 		logButton.addActionListener(a);
 		
 	}
+	
+	/**
+	 * Adds a listener called whenever the text area is scrolled or its height changes
+	 * @param a
+	 */
+	public void addScrollListener(AdjustmentListener a){
+		scrollPane.getVerticalScrollBar().addAdjustmentListener(a);
+	}
 
 	/**
 	 * Shows the tip if the message field is empty before attempting to end a message
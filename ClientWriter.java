@@ -0,0 +1,209 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Writes messages to a single client in the threads and virtual modes. Messages are
+ * put into its OutboundQueue by whoever broadcasts them; this thread takes them out
+ * in batches of up to ServerConfig.writeBatch and flushes the socket once per batch.
+ * When the queue is empty, it writes the next chunk of the client's download, if it
+ * has one, see FileStore.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class ClientWriter implements Runnable {
+
+	private final Transport.Connection connection;
+	private final OutboundQueue queue;
+
+	/**
+	 * Connection id of the client, see ConnectionRegistry
+	 */
+	private int id;
+
+	/**
+	 * Numbers of the old messages to be written before anything from the queue,
+	 * see replay()
+	 */
+	private long backlogFrom = 0;
+	private long backlogTo = 0;
+
+	/**
+	 * Protocol.TEXT, or Protocol.TAGGED / Protocol.BINARY once the client has sent "/sync"
+	 */
+	private volatile int format = Protocol.TEXT;
+
+	/**
+	 * Sender numbers the client knows in the binary format. Only the writer thread
+	 * touches it.
+	 */
+	private final BitSet knownSenders = new BitSet();
+
+	private volatile Thread thread;
+
+	/**
+	 * Creates a writer for the connection. Nothing is written until start() is called.
+	 * @param connection Connection of the client
+	 */
+	public ClientWriter(Transport.Connection connection) {
+		this.connection = connection;
+		this.queue = new OutboundQueue(null, new Runnable() {
+			@Override
+			public void run() {
+				disconnect();
+			}
+		});
+	}
+
+	/**
+	 * Sets the messages of the history written first, before anything that is sent to
+	 * the client later. They are read and encoded by the writer thread, so a long
+	 * history doesn't hold up the thread that accepts clients.
+	 * @param from Number of the first message to write
+	 * @param to Number after the last message to write
+	 */
+	public void replay(long from, long to) {
+		backlogFrom = from;
+		backlogTo = to;
+	}
+
+	/**
+	 * Called when the client starts with "/sync": switches to tagged lines or frames
+	 * and replays only the messages newer than the last one the client has. Must be
+	 * called before start().
+	 * @param lastSeen Sequence number of the newest message the client has
+	 * @param binary true if the client asked for the binary format
+	 * @param most The most messages the client wants, -1 if it didn't say
+	 */
+	public void sync(long lastSeen, boolean binary, long most) {
+		format = binary ? Protocol.BINARY : Protocol.TAGGED;
+		backlogFrom = Math.max(backlogFrom, Server.syncStart(lastSeen, most, backlogTo));
+	}
+
+	/**
+	 * Wire format of the client: Protocol.TEXT, Protocol.TAGGED or Protocol.BINARY
+	 */
+	public int getFormat() {
+		return format;
+	}
+
+	/**
+	 * Queues a message for the client
+	 * @param msg The message, shared with other clients
+	 */
+	public void send(Outgoing msg) {
+		queue.offer(msg);
+	}
+
+	public OutboundQueue getQueue() {
+		return queue;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public void setId(int newId) {
+		id = newId;
+	}
+
+	/**
+	 * Starts the writer thread, a virtual one in the "virtual" mode
+	 */
+	public void start() {
+		if(ServerConfig.mode.equals("virtual")){
+			thread = VirtualThreads.start(this);
+		}
+		else{
+			thread = new Thread(this);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	@Override
+	public void run() {
+		ArrayList<Outgoing> batch = new ArrayList<Outgoing>(ServerConfig.writeBatch);
+		ArrayList<Message> old = new ArrayList<Message>(ServerConfig.writeBatch);
+		ArrayList<byte[]> encoded = new ArrayList<byte[]>(ServerConfig.writeBatch);
+		try {
+			OutputStream output = new BufferedOutputStream(connection.getOutputStream(), 8192);
+			WritableByteChannel files = Channels.newChannel(connection.getOutputStream());
+			if(format == Protocol.BINARY)
+				output.write(OutboundQueue.encode(Protocol.BINARY_ACK));
+			long start = Server.replayStart(backlogFrom, backlogTo);
+			if(start > backlogFrom)
+				output.write(Outgoing.line(Protocol.truncated(format, start - backlogFrom)).bytes(format));
+			for(long i = start; i < backlogTo; i += ServerConfig.writeBatch){
+				Server.history.read(i, Math.min(i + ServerConfig.writeBatch, backlogTo), old);
+				for(int j = 0; j < old.size(); j++){
+					Outgoing.of(old.get(j)).appendTo(format, knownSenders, encoded);
+				}
+				write(output, encoded);
+				old.clear();
+			}
+			output.flush();
+
+			while(!queue.isClosed()){
+				// the download first: if it's there, so is the line announcing it
+				FileStore.Transfer download = FileStore.download(id, format);
+				Outgoing next = queue.poll();
+				if(next == null && download != null){
+					long wait = download.due();
+					if(wait == 0){
+						download.send(files);
+						if(download.isComplete())
+							FileStore.finished(id, download);
+						continue;
+					}
+					next = queue.poll(wait);
+					if(next == null)
+						continue;
+				}
+				batch.add(next != null ? next : queue.take());
+				queue.drainTo(batch, ServerConfig.writeBatch-1);
+				for(int i = 0; i < batch.size(); i++){
+					batch.get(i).appendTo(format, knownSenders, encoded);
+				}
+				write(output, encoded);
+				batch.clear();
+				output.flush();
+			}//while
+		} catch (IOException e) {
+			queue.close();
+		} catch (InterruptedException e) {
+			queue.close();
+		}
+	}//run()
+
+	private static void write(OutputStream output, ArrayList<byte[]> encoded) throws IOException {
+		long bytes = 0;
+		for(int i = 0; i < encoded.size(); i++){
+			output.write(encoded.get(i));
+			bytes += encoded.get(i).length;
+		}
+		Metrics.messagesOut.add(encoded.size());
+		Metrics.bytesOut.add(bytes);
+		encoded.clear();
+	}
+
+	/**
+	 * Removes the client from the connections, closes the connection, which also ends the
+	 * thread reading from it, and stops the writer thread
+	 */
+	private void disconnect() {
+		Server.connections.remove(id);
+		try {
+			connection.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		Thread t = thread;
+		if(t != null && t != Thread.currentThread())
+			t.interrupt();
+	}
+
+}//class ClientWriter
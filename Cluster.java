@@ -0,0 +1,654 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several Servers working as one. Every node has its own clients and its own copy of
+ * every room's history; the nodes are connected to each other over TCP.
+ *
+ * Every room has an owner node, worked out from the room's name, which alone numbers
+ * the room's messages. A node that gets a message for a room it doesn't own forwards
+ * it to the owner (FORWARD). The owner stores it, sends it to its own clients and
+ * relays it, with its number, to every other node (STORED), which stores it at the
+ * same number and sends it to its clients. That way every node has every room's
+ * messages in the same order.
+ *
+ * A node that gets a message with a higher number than it expects has missed some
+ * (e.g. it was restarted) and asks the owner for the rest of the room (FETCH). The
+ * same happens for every room a node knows whenever it connects to the room's owner,
+ * or the owner connects to it. Each node keeps its own MessageLog, so a restarted node
+ * recovers its history from disk and fetches only what it missed.
+ *
+ * An owner's own log may be missing its newest messages, or be turned off, while the
+ * other nodes have them. So before a starting node numbers anything, it asks every
+ * other node for what it has of the rooms this node owns beyond this node's copy
+ * (CATCH_UP), and each one answers with those messages and CAUGHT_UP. Messages
+ * forwarded meanwhile wait; after ServerConfig.clusterCatchUpMillis the node goes on
+ * without the nodes that haven't answered.
+ *
+ * The frames for a node wait in a queue of ServerConfig.clusterQueueCapacity. A node
+ * that falls so far behind that they don't fit is disconnected, like a slow client, and
+ * fetches what it missed once it's connected again. Forwarded messages waiting for it
+ * are lost then.
+ *
+ * A link carries frames in one direction only: [length: int][type: byte][fields].
+ * Every node connects to every other node and first says who it is (HELLO).
+ *
+ * Example of three nodes on one machine, each with its own port, files and node id:
+ * java Server --port=9001 --node-id=0 --cluster=localhost:9101,localhost:9102,localhost:9103
+ *   --history-dir=history0 --log-file=messages0.log
+ * and the same with --port=9002 --node-id=1 ... and --port=9003 --node-id=2 ...
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Cluster {
+
+	private static final byte HELLO = 1;
+	private static final byte FORWARD = 2;
+	private static final byte STORED = 3;
+	private static final byte FETCH = 4;
+	private static final byte CATCH_UP = 5;
+	private static final byte CAUGHT_UP = 6;
+
+	/**
+	 * Most messages of a room read from its history at once when sending them to a node
+	 */
+	private static final int SEND_BATCH = 256;
+
+	/**
+	 * Queued to wake up a link's thread after its connection has been closed. Nothing
+	 * is written for it.
+	 */
+	private static final byte[] WAKE_UP = new byte[0];
+
+	private final int nodeId;
+	private final InetSocketAddress[] nodes;
+	private final Rooms rooms;
+
+	/**
+	 * links[i] sends frames to node i, links[nodeId] is null
+	 */
+	private final PeerLink[] links;
+
+	/**
+	 * Rooms for which a FETCH has been sent and not yet answered
+	 */
+	private final Set<String> fetching = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Nodes that have answered CATCH_UP, guarded by itself
+	 */
+	private final Set<Integer> caughtUp = new HashSet<Integer>();
+
+	/**
+	 * Messages forwarded to this node before it has caught up, guarded by itself
+	 */
+	private final ArrayList<Message> held = new ArrayList<Message>();
+
+	/**
+	 * Set once this node has caught up and numbers messages
+	 */
+	private volatile boolean ready = false;
+
+	/**
+	 * Creates a node of a cluster. Nothing happens until start() is called.
+	 * @param nodeId Number of this node, an index into nodes
+	 * @param nodes Addresses the nodes listen on for each other, in the order of their ids
+	 * @param rooms Rooms of this node
+	 */
+	public Cluster(int nodeId, InetSocketAddress[] nodes, Rooms rooms) {
+		if(nodeId < 0 || nodeId >= nodes.length)
+			throw new IllegalArgumentException("No node "+nodeId+" among "+nodes.length+" nodes");
+		this.nodeId = nodeId;
+		this.nodes = nodes;
+		this.rooms = rooms;
+		this.links = new PeerLink[nodes.length];
+		for(int i = 0; i < nodes.length; i++){
+			if(i != nodeId)
+				links[i] = new PeerLink(i);
+		}
+	}
+
+	/**
+	 * Creates the node configured by ServerConfig
+	 * @param rooms Rooms of this node
+	 * @return The node, or null if ServerConfig.cluster is empty (no cluster)
+	 */
+	public static Cluster fromConfig(Rooms rooms) {
+		if(ServerConfig.cluster.isEmpty())
+			return null;
+		String[] parts = ServerConfig.cluster.split(",");
+		InetSocketAddress[] nodes = new InetSocketAddress[parts.length];
+		for(int i = 0; i < parts.length; i++){
+			String part = parts[i].trim();
+			int colon = part.lastIndexOf(':');
+			nodes[i] = new InetSocketAddress(part.substring(0, colon), Integer.parseInt(part.substring(colon+1)));
+		}
+		return new Cluster(ServerConfig.nodeId, nodes, rooms);
+	}
+
+	/**
+	 * Starts listening for the other nodes and connecting to them, and returns once this
+	 * node has caught up with them, see catchUp()
+	 * @throws IOException If the cluster port cannot be bound
+	 */
+	public void start() throws IOException {
+		final ServerSocket listener = new ServerSocket(nodes[nodeId].getPort());
+		startThread(new Runnable() {
+			@Override
+			public void run() {
+				listen(listener);
+			}
+		}, "cluster-listener");
+		for(int i = 0; i < links.length; i++){
+			if(links[i] != null)
+				startThread(links[i], "cluster-link-"+i);
+		}
+		System.out.println("Node "+nodeId+" of "+nodes.length+" listening for nodes on port "+nodes[nodeId].getPort());
+		catchUp();
+	}
+
+	/**
+	 * Waits until every other node has answered CATCH_UP, or for
+	 * ServerConfig.clusterCatchUpMillis, and then numbers the messages forwarded meanwhile
+	 */
+	private void catchUp() {
+		long deadline = System.currentTimeMillis() + ServerConfig.clusterCatchUpMillis;
+		synchronized(caughtUp){
+			long left;
+			while(caughtUp.size() < links.length - 1 && (left = deadline - System.currentTimeMillis()) > 0){
+				try {
+					caughtUp.wait(left);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}//while
+			System.out.println("Node "+nodeId+" caught up with "+caughtUp.size()+" of "+(links.length-1)+" nodes");
+		}
+		synchronized(held){
+			for(int i = 0; i < held.size(); i++){
+				Message msg = held.get(i);
+				ServerLog.message(rooms.getOrCreate(msg.getRoom()).sequence(msg));
+			}
+			held.clear();
+			ready = true;
+		}
+	}
+
+	/**
+	 * Number of the node that numbers the messages of a room
+	 * @param room Name of the room, null for the main room
+	 */
+	public int owner(String room) {
+		String name = room == null ? Protocol.MAIN_ROOM : room;
+		return Math.floorMod(name.hashCode(), nodes.length);
+	}
+
+	public boolean isOwner(String room) {
+		return owner(room) == nodeId;
+	}
+
+	/**
+	 * Sends a message for a room owned by another node to that node
+	 * @param msg The message, in its room
+	 */
+	public void forward(Message msg) {
+		links[owner(msg.getRoom())].send(encode(FORWARD, msg), false);
+	}
+
+	/**
+	 * Sends a message numbered by this node to all other nodes. Called with the lock of
+	 * the room's history held, so the nodes get the messages in the order of their
+	 * numbers. A node that isn't connected will fetch them when it is.
+	 * @param msg The stored message
+	 */
+	public void relay(Message msg) {
+		byte[] frame = encode(STORED, msg);
+		for(int i = 0; i < links.length; i++){
+			if(links[i] != null)
+				links[i].send(frame, true);
+		}
+	}
+
+	private void listen(ServerSocket listener) {
+		while(true){
+			try {
+				final Socket socket = listener.accept();
+				startThread(new Runnable() {
+					@Override
+					public void run() {
+						readPeer(socket);
+					}
+				}, "cluster-reader");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}//while(true)
+	}
+
+	/**
+	 * Reads the frames another node sends over its link to this node
+	 */
+	private void readPeer(Socket socket) {
+		int from = -1;
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while(true){
+				int length = input.readInt();
+				if(length < 1 || length > Frames.MAX_FRAME)
+					throw new IOException("Bad frame length "+length);
+				byte type = input.readByte();
+				if(type == HELLO){
+					from = input.readInt();
+					System.out.println("Node "+from+" connected");
+					if(from >= 0 && from < links.length && links[from] != null)
+						fetchAll(from);
+				}
+				else if(type == FORWARD){
+					Message msg = readMessage(input);
+					if(!hold(msg)){
+						Room room = rooms.getOrCreate(msg.getRoom());
+						ServerLog.message(room.sequence(msg));
+					}
+				}
+				else if(type == STORED){
+					onStored(readMessage(input));
+				}
+				else if(type == FETCH && from >= 0 && from < links.length && links[from] != null){
+					String name = readString(input);
+					long first = input.readLong();
+					sendRoom(from, rooms.getOrCreate(name.isEmpty() ? null : name), first);
+				}
+				else if(type == CATCH_UP && from >= 0 && from < links.length && links[from] != null){
+					HashMap<String, Long> sizes = new HashMap<String, Long>();
+					int count = input.readInt();
+					for(int i = 0; i < count; i++){
+						String name = readString(input);
+						sizes.put(name, input.readLong());
+					}
+					sendCatchUp(from, sizes);
+				}
+				else if(type == CAUGHT_UP && from >= 0){
+					synchronized(caughtUp){
+						caughtUp.add(from);
+						caughtUp.notifyAll();
+					}
+				}
+				else{
+					input.skipBytes(length-1);
+				}
+			}//while(true)
+		} catch (IOException e) {
+			// the other node is gone, it connects again when it's back; the link to it
+			// is closed too, or whatever is written to it until that's noticed is lost
+			if(from >= 0 && from < links.length && links[from] != null)
+				links[from].disconnect();
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Keeps a forwarded message until this node has caught up
+	 * @return false if the node has caught up and the message is to be numbered now
+	 */
+	private boolean hold(Message msg) {
+		if(ready)
+			return false;
+		synchronized(held){
+			if(ready)
+				return false;
+			held.add(msg);
+			return true;
+		}
+	}
+
+	/**
+	 * Stores a message numbered by its room's owner, or asks the owner for the missing
+	 * messages if it's ahead of this node's copy of the room. The rooms this node owns
+	 * get messages from the other nodes only while it catches up, and are never fetched.
+	 */
+	private void onStored(Message msg) {
+		Room room = rooms.getOrCreate(msg.getRoom());
+		if(room.apply(msg)){
+			fetching.remove(room.getName());
+			return;
+		}
+		long expected = room.getHistory().size();
+		if(msg.getSeq() > expected && !isOwner(msg.getRoom()) && fetching.add(room.getName())){
+			fetch(room, expected);
+		}
+	}
+
+	private void fetch(Room room, long first) {
+		int owner = owner(room.getMessageRoom());
+		if(links[owner] == null)
+			return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream frame = start(bytes, FETCH);
+		try {
+			writeString(frame, room.isMain() ? "" : room.getName());
+			frame.writeLong(first);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		links[owner].send(finish(bytes), false);
+	}
+
+	/**
+	 * Sends the messages of a room from a number on to another node. They are read and
+	 * encoded SEND_BATCH at a time, without holding the lock of the room's history, and
+	 * the link's queue is waited for. Only the last few, once they fit in the queue, are
+	 * sent under the lock, so nothing relayed meanwhile gets ahead of them.
+	 * @return false if the link's queue stayed full for ServerConfig.clusterCatchUpMillis
+	 * and the rest wasn't sent
+	 */
+	private boolean sendRoom(int node, Room room, long first) {
+		MessageHistory history = room.getHistory();
+		ArrayList<Message> batch = new ArrayList<Message>(SEND_BATCH);
+		long next = Math.max(0, first);
+		while(true){
+			long to;
+			synchronized(history){
+				to = room.getReleased();
+				if(to - next <= Math.min(SEND_BATCH, links[node].free())){
+					for(long i = next; i < to; i++){
+						links[node].send(encode(STORED, history.get(i)), false);
+					}
+					return true;
+				}
+			}
+			batch.clear();
+			history.read(next, Math.min(to, next + SEND_BATCH), batch);
+			for(int i = 0; i < batch.size(); i++){
+				if(!links[node].sendWaiting(encode(STORED, batch.get(i))))
+					return false;
+			}
+			next += batch.size();
+		}//while(true)
+	}
+
+	/**
+	 * Answers CATCH_UP: sends a node the messages of the rooms it owns beyond the sizes
+	 * it has, from the start for the rooms it doesn't know, and then CAUGHT_UP
+	 * @param sizes Sizes of the node's rooms by name, "" for the main room
+	 */
+	private void sendCatchUp(int node, HashMap<String, Long> sizes) {
+		for(Room room : rooms.getAll()){
+			if(owner(room.getMessageRoom()) == node){
+				Long size = sizes.get(room.isMain() ? "" : room.getName());
+				if(!sendRoom(node, room, size == null ? 0 : size))
+					return;
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		start(bytes, CAUGHT_UP);
+		links[node].send(finish(bytes), false);
+	}
+
+	/**
+	 * Called when a link to a node has been (re)connected: asks it for whatever this
+	 * node has missed in the rooms it owns and, while catching up, for what it has of
+	 * the rooms this node owns
+	 */
+	private void onConnected(int node) {
+		fetchAll(node);
+		if(ready)
+			return;
+		ArrayList<Room> owned = new ArrayList<Room>();
+		for(Room room : rooms.getAll()){
+			if(isOwner(room.getMessageRoom()))
+				owned.add(room);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream frame = start(bytes, CATCH_UP);
+		try {
+			frame.writeInt(owned.size());
+			for(int i = 0; i < owned.size(); i++){
+				Room room = owned.get(i);
+				writeString(frame, room.isMain() ? "" : room.getName());
+				frame.writeLong(room.getHistory().size());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		links[node].send(finish(bytes), false);
+	}
+
+	/**
+	 * Asks a node for whatever this node has missed in the rooms it owns
+	 */
+	private void fetchAll(int node) {
+		for(Room room : rooms.getAll()){
+			if(owner(room.getMessageRoom()) == node){
+				fetching.remove(room.getName());
+				fetch(room, room.getHistory().size());
+			}
+		}
+	}
+
+	private static byte[] encode(byte type, Message msg) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream frame = start(bytes, type);
+		try {
+			frame.writeLong(msg.getSeq());
+			frame.writeLong(msg.getTimestamp());
+			writeString(frame, msg.getRoom() == null ? "" : msg.getRoom());
+			writeString(frame, msg.getSender());
+			writeString(frame, msg.getBody());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return finish(bytes);
+	}
+
+	private static Message readMessage(DataInputStream input) throws IOException {
+		long seq = input.readLong();
+		long timestamp = input.readLong();
+		String room = readString(input);
+		String sender = readString(input);
+		String body = readString(input);
+		return new Message(seq, timestamp, sender, body, room.isEmpty() ? null : room);
+	}
+
+	private static DataOutputStream start(ByteArrayOutputStream bytes, byte type) {
+		DataOutputStream frame = new DataOutputStream(bytes);
+		try {
+			frame.writeInt(0);
+			frame.writeByte(type);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return frame;
+	}
+
+	/**
+	 * Fills in the length of a frame built by start()
+	 */
+	private static byte[] finish(ByteArrayOutputStream bytes) {
+		byte[] frame = bytes.toByteArray();
+		int length = frame.length - 4;
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+		return frame;
+	}
+
+	/**
+	 * Writes a String as its length in UTF-8 bytes and the bytes, -1 for null
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if(s == null){
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream input) throws IOException {
+		int length = input.readInt();
+		if(length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void startThread(Runnable r, String name) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * The link from this node to another one. Frames are queued by anyone and written
+	 * by the link's own thread, which connects again, after ServerConfig.clusterRetryMillis,
+	 * whenever the connection is lost.
+	 */
+	private class PeerLink implements Runnable {
+		private final int node;
+		private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(ServerConfig.clusterQueueCapacity);
+		private volatile boolean connected = false;
+
+		/**
+		 * The connection, to be closed when the queue overflows, null while connecting.
+		 * Set with the link locked.
+		 */
+		private volatile Socket socket;
+
+		PeerLink(int node) {
+			this.node = node;
+		}
+
+		/**
+		 * Queues a frame
+		 * @param frame The frame
+		 * @param droppable true if the frame can be dropped while the node isn't connected,
+		 * because the node will fetch it when it is
+		 */
+		void send(byte[] frame, boolean droppable) {
+			if(droppable && !connected)
+				return;
+			if(!queue.offer(frame))
+				overflow();
+		}
+
+		/**
+		 * Number of frames that can be queued without waiting
+		 */
+		int free() {
+			return queue.remainingCapacity();
+		}
+
+		/**
+		 * Queues a frame, waiting for room in the queue. Not to be called with the lock of
+		 * a history held.
+		 * @return false if there was no room for ServerConfig.clusterCatchUpMillis
+		 */
+		boolean sendWaiting(byte[] frame) {
+			try {
+				return queue.offer(frame, ServerConfig.clusterCatchUpMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * The node is too far behind: like a slow client with the "disconnect" policy of
+		 * OutboundQueue, whatever is queued for it is thrown away and its connection
+		 * closed. Once connected again it fetches what it missed.
+		 */
+		private void overflow() {
+			queue.clear();
+			if(disconnect())
+				System.out.println("Node "+node+" fell behind, dropping the link to it");
+		}
+
+		/**
+		 * Closes the connection, if any. The link's thread connects again; what is still
+		 * queued is sent then.
+		 * @return false if it wasn't connected
+		 */
+		synchronized boolean disconnect() {
+			Socket s = socket;
+			if(s == null)
+				return false;
+			socket = null;
+			connected = false;
+			try {
+				s.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			queue.offer(WAKE_UP);
+			return true;
+		}
+
+		@Override
+		public void run() {
+			byte[] unsent = null;
+			while(true){
+				Socket socket = null;
+				try {
+					socket = new Socket();
+					socket.connect(nodes[node]);
+					socket.setTcpNoDelay(true);
+					DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+					output.writeInt(5);
+					output.writeByte(HELLO);
+					output.writeInt(nodeId);
+					output.flush();
+					synchronized(this){
+						this.socket = socket;
+						connected = true;
+					}
+					System.out.println("Connected to node "+node);
+					onConnected(node);
+					while(true){
+						if(unsent == null)
+							unsent = queue.take();
+						if(this.socket != socket)
+							throw new SocketException("Link closed");
+						output.write(unsent);
+						unsent = null;
+						if(queue.isEmpty())
+							output.flush();
+					}
+				} catch (IOException e) {
+					// the node isn't up yet or is gone, try again later
+				} catch (InterruptedException e) {
+					return;
+				}
+				synchronized(this){
+					connected = false;
+					this.socket = null;
+				}
+				try {
+					socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				try {
+					Thread.sleep(ServerConfig.clusterRetryMillis);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}//while(true)
+		}//run()
+	}//class PeerLink
+
+}//class Cluster
@@ -0,0 +1,167 @@
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every connected client, in all server modes, by its connection id. Ids start at 1
+ * and are never reused, so they stay valid however many clients come and go.
+ *
+ * Only the outbound queue of a client is kept here, which is all a broadcast needs.
+ * The map is a ConcurrentHashMap: adding and removing is O(1), and sendToAll() may
+ * iterate it while clients connect and disconnect, without any lock of its own.
+ * A client is removed when its queue is closed, which happens on the first failed
+ * read or write (see ClientWriter and ServerReactor).
+ *
+ * Clients may also claim a nickname ("/nick"). A second map goes from the nickname,
+ * in lower case, to the connection id, so a direct message finds its recipient with
+ * one lookup instead of a scan, and putIfAbsent() makes sure only one connection
+ * gets a nickname. The nickname is given up when the client is removed.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class ConnectionRegistry {
+
+	private final ConcurrentHashMap<Integer, OutboundQueue> connections = new ConcurrentHashMap<Integer, OutboundQueue>();
+	private final AtomicInteger lastId = new AtomicInteger();
+
+	/**
+	 * Connection ids by nickname in lower case, and nicknames as claimed by connection id
+	 */
+	private final ConcurrentHashMap<String, Integer> byNickname = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<Integer, String> nicknames = new ConcurrentHashMap<Integer, String>();
+
+	/**
+	 * Adds a client
+	 * @param queue Outbound queue of the client
+	 * @return The connection id of the client
+	 */
+	public int add(OutboundQueue queue) {
+		int id = lastId.incrementAndGet();
+		connections.put(id, queue);
+		return id;
+	}
+
+	/**
+	 * Removes a disconnected client. Removing it again does nothing.
+	 * @param id The connection id
+	 * @return true if the client was still registered
+	 */
+	public boolean remove(int id) {
+		if(connections.remove(id) == null)
+			return false;
+		release(id);
+		FileStore.close(id);
+		ServerLog.connection("Client no "+id+" disconnected, "+size()+" connected");
+		return true;
+	}
+
+	/**
+	 * Returns the outbound queue of a client
+	 * @param id The connection id
+	 * @return The queue, or null if the client is not connected
+	 */
+	public OutboundQueue get(int id) {
+		return connections.get(id);
+	}
+
+	/**
+	 * Claims a nickname for a client, giving up the one it had before
+	 * @param id The connection id
+	 * @param nickname The nickname, see Protocol.isNickname()
+	 * @return false if another client has it, in any case, or the client is gone
+	 */
+	public boolean register(int id, String nickname) {
+		String key = nickname.toLowerCase(Locale.ROOT);
+		Integer owner = byNickname.putIfAbsent(key, id);
+		if(owner != null && owner != id)
+			return false;
+		String old = nicknames.put(id, nickname);
+		if(old != null && !old.toLowerCase(Locale.ROOT).equals(key))
+			byNickname.remove(old.toLowerCase(Locale.ROOT), id);
+		// removed meanwhile, remove() may have missed the nickname
+		if(!connections.containsKey(id)){
+			release(id);
+			return false;
+		}
+		return true;
+	}
+
+	private void release(int id) {
+		String nickname = nicknames.remove(id);
+		if(nickname != null)
+			byNickname.remove(nickname.toLowerCase(Locale.ROOT), id);
+	}
+
+	/**
+	 * Returns the nickname a client has claimed
+	 * @param id The connection id
+	 * @return The nickname, or null if it hasn't claimed any
+	 */
+	public String getNickname(int id) {
+		return nicknames.get(id);
+	}
+
+	/**
+	 * Tells if a client may sign messages with a nickname, i.e. no other client has
+	 * claimed it
+	 * @param id The connection id
+	 * @param nickname The nickname
+	 * @return true if the nickname is free or the client's own
+	 */
+	public boolean mayUse(int id, String nickname) {
+		Integer owner = byNickname.get(nickname.toLowerCase(Locale.ROOT));
+		return owner == null || owner == id;
+	}
+
+	/**
+	 * Queues a message for the client with a nickname only
+	 * @param nickname The nickname, in any case
+	 * @param out The message
+	 * @return false if no connected client has the nickname
+	 */
+	public boolean sendTo(String nickname, Outgoing out) {
+		Integer id = byNickname.get(nickname.toLowerCase(Locale.ROOT));
+		if(id == null)
+			return false;
+		OutboundQueue queue = connections.get(id);
+		if(queue == null)
+			return false;
+		queue.offer(out);
+		return true;
+	}
+
+	/**
+	 * Number of clients connected right now
+	 */
+	public int size() {
+		return connections.size();
+	}
+
+	/**
+	 * Number of clients that have ever connected, which is also the last id given out
+	 */
+	public int getTotal() {
+		return lastId.get();
+	}
+
+	/**
+	 * Queues a message for every connected client. A client that connects or
+	 * disconnects meanwhile may or may not get it.
+	 * @param out The message, shared by all the queues
+	 */
+	public void sendToAll(Outgoing out) {
+		for(OutboundQueue queue : connections.values()){
+			queue.offer(out);
+		}
+	}
+
+	/**
+	 * The outbound queues of all connected clients, safe to iterate at any time
+	 */
+	public Collection<OutboundQueue> getQueues() {
+		return connections.values();
+	}
+
+}//class ConnectionRegistry
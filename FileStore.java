@@ -0,0 +1,348 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files uploaded by clients and the transfers going on, see Protocol for the commands.
+ * Files are kept in ServerConfig.filesDir under the names they were uploaded with.
+ *
+ * An upload is written straight into "<name>.<size>.part" chunk by chunk as the frames
+ * arrive, and renamed to the name when it's complete. If the connection breaks, the
+ * part stays and the next "/upload" of the same name and size goes on from its end.
+ *
+ * A download is sent in chunks of Frames.CHUNK_BYTES with FileChannel.transferTo(), so
+ * the file goes from the page cache to the socket without being copied through the heap
+ * (in the nio mode; the other modes only have a stream to write to, through which
+ * transferTo() copies). A client's writer sends a chunk only when nothing else is
+ * waiting for the client, so chat is never stuck behind a file, at most behind a single
+ * chunk.
+ *
+ * Every transfer has its own TokenBucket of ServerConfig.transferBytesPerSecond. A
+ * download over it waits before the next chunk; an upload over it stops reading from
+ * the client for a while, like a "delay" of RateLimiter.
+ *
+ * A client has at most one upload and one download at a time, kept by its connection
+ * id like in ConnectionRegistry, and both end when it disconnects.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class FileStore {
+
+	private static final ConcurrentHashMap<Integer, Transfer> uploads = new ConcurrentHashMap<Integer, Transfer>();
+	private static final ConcurrentHashMap<Integer, Transfer> downloads = new ConcurrentHashMap<Integer, Transfer>();
+
+	/**
+	 * Names being uploaded, so two clients don't write the same part
+	 */
+	private static final Set<String> uploading = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * An upload or a download. A download is used by the writer of its client only.
+	 */
+	public static class Transfer {
+		final String name;
+		final FileChannel channel;
+		final long size;
+		long position;
+
+		/**
+		 * null if there is no limit
+		 */
+		final TokenBucket limit;
+
+		/**
+		 * Start of the FILE_CHUNK frame being written and where the chunk ends in the
+		 * file, -1 if no chunk is being written
+		 */
+		private final ByteBuffer header = ByteBuffer.allocate(Frames.FILE_CHUNK_HEADER);
+		private long chunkEnd = -1;
+
+		Transfer(String name, FileChannel channel, long size, long position) {
+			this.name = name;
+			this.channel = channel;
+			this.size = size;
+			this.position = position;
+			double rate = ServerConfig.transferBytesPerSecond;
+			this.limit = rate > 0 ? new TokenBucket(rate, Math.max(rate / 10, Frames.CHUNK_BYTES)) : null;
+		}
+
+		/**
+		 * Asks if the next chunk of a download may be sent
+		 * @return 0 if it may be sent now, and then it must be, or the nanoseconds to wait
+		 */
+		public long due() {
+			if(chunkEnd >= 0 || limit == null)
+				return 0;
+			return limit.tryTake(Math.min(Frames.CHUNK_BYTES, size - position));
+		}
+
+		/**
+		 * Writes the next chunk of a download, or the rest of the one begun before
+		 * @param out The client's socket
+		 * @return false if the socket took only part of it
+		 */
+		public boolean send(WritableByteChannel out) throws IOException {
+			if(chunkEnd < 0){
+				int length = (int) Math.min(Frames.CHUNK_BYTES, size - position);
+				header.clear();
+				Frames.fileChunkHeader(header, position, length);
+				header.flip();
+				chunkEnd = position + length;
+			}
+			while(header.hasRemaining()){
+				int n = out.write(header);
+				if(n == 0)
+					return false;
+				Metrics.bytesOut.add(n);
+			}
+			while(position < chunkEnd){
+				long n = channel.transferTo(position, chunkEnd - position, out);
+				if(n == 0){
+					if(position >= channel.size())
+						throw new IOException("File "+name+" got shorter");
+					return false;
+				}
+				position += n;
+				Metrics.bytesOut.add(n);
+			}
+			chunkEnd = -1;
+			return true;
+		}
+
+		/**
+		 * Tells if a chunk has been begun and not finished
+		 */
+		public boolean isSending() {
+			return chunkEnd >= 0;
+		}
+
+		public boolean isComplete() {
+			return chunkEnd < 0 && position >= size;
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}//class Transfer
+
+	/**
+	 * Handles "/upload <name> <size>" and "/download <name> [<offset>]"
+	 * @param id Connection id of the client
+	 * @param queue Outbound queue of the client, for the answer
+	 * @param text Text of the client's message
+	 * @return false if the text is none of these commands
+	 */
+	public static boolean onCommand(int id, OutboundQueue queue, String text) {
+		String[] upload = Protocol.argsOf(Protocol.UPLOAD, text);
+		String[] download = Protocol.argsOf(Protocol.DOWNLOAD, text);
+		if(upload == null && download == null)
+			return false;
+		if(ServerConfig.filesDir.isEmpty()){
+			queue.offer(Outgoing.line("File transfers are switched off."));
+		}
+		else if(upload != null){
+			if(upload.length != 2 || !Protocol.isFileName(upload[0]) || Protocol.count(upload[1]) < 0)
+				queue.offer(Outgoing.line("Type "+Protocol.UPLOAD+" <name> <size>."));
+			else
+				upload(id, queue, upload[0], Protocol.count(upload[1]));
+		}
+		else{
+			long offset = download.length == 2 ? Protocol.count(download[1]) : 0;
+			if(download.length > 2 || !Protocol.isFileName(download[0]) || offset < 0)
+				queue.offer(Outgoing.line("Type "+Protocol.DOWNLOAD+" <name>."));
+			else
+				download(id, queue, download[0], offset);
+		}
+		return true;
+	}
+
+	private static void upload(int id, OutboundQueue queue, String name, long size) {
+		if(size > ServerConfig.maxFileBytes){
+			queue.offer(Outgoing.line("Files may have up to "+ServerConfig.maxFileBytes+" bytes."));
+			return;
+		}
+		File dir = new File(ServerConfig.filesDir);
+		if(new File(dir, name).exists()){
+			queue.offer(Outgoing.line("There already is a file called "+name+"."));
+			return;
+		}
+		// a new upload of the same client takes the place of its old one
+		Transfer old = uploads.remove(id);
+		if(old != null)
+			endUpload(old);
+		if(!uploading.add(name)){
+			queue.offer(Outgoing.line(name+" is being uploaded by someone else."));
+			return;
+		}
+		Transfer t;
+		try {
+			dir.mkdirs();
+			FileChannel channel = FileChannel.open(new File(dir, name+"."+size+".part").toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			long offset = Math.min(channel.size(), size);
+			t = new Transfer(name, channel, size, offset);
+		} catch (IOException e) {
+			e.printStackTrace();
+			uploading.remove(name);
+			queue.offer(Outgoing.line("Can't upload "+name+"."));
+			return;
+		}
+		uploads.put(id, t);
+		if(t.position == size)
+			complete(id, t);
+		else
+			queue.offer(Outgoing.line(answer(t)));
+	}
+
+	/**
+	 * "/upload <name> <offset> <bytes a second>", where offset is the size once the
+	 * upload is complete
+	 */
+	private static String answer(Transfer t) {
+		return Protocol.UPLOAD+" "+t.name+" "+t.position+" "+Math.round(Math.max(0, ServerConfig.transferBytesPerSecond));
+	}
+
+	/**
+	 * Writes a FILE_CHUNK frame of the client's upload to the file
+	 * @param id Connection id of the client
+	 * @param frame The fields of the frame, from the position to the limit
+	 * @return Nanoseconds to wait before reading more from the client, 0 for none
+	 * @throws IOException If the frame is too short to hold the offset, so that the
+	 * client gets disconnected like for any other malformed frame
+	 */
+	public static long onChunk(int id, ByteBuffer frame) throws IOException {
+		if(frame.remaining() < 8)
+			throw new IOException("FILE_CHUNK frame too short");
+		Transfer t = uploads.get(id);
+		long offset = frame.getLong();
+		int length = frame.remaining();
+		// left over from an upload that has been given up, or out of order
+		if(t == null || offset != t.position)
+			return 0;
+		OutboundQueue queue = Server.connections.get(id);
+		if(t.position + length > t.size){
+			if(uploads.remove(id, t))
+				endUpload(t);
+			if(queue != null)
+				queue.offer(Outgoing.line("The upload of "+t.name+" is longer than it said."));
+			return 0;
+		}
+		try {
+			while(frame.hasRemaining()){
+				t.position += t.channel.write(frame, t.position);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			if(uploads.remove(id, t))
+				endUpload(t);
+			if(queue != null)
+				queue.offer(Outgoing.line("Can't upload "+t.name+"."));
+			return 0;
+		}
+		if(t.position == t.size)
+			complete(id, t);
+		return t.limit == null ? 0 : t.limit.take(length);
+	}
+
+	/**
+	 * Gives the complete file its name and tells the main room about it
+	 */
+	private static void complete(int id, Transfer t) {
+		if(!uploads.remove(id, t))
+			return;
+		File dir = new File(ServerConfig.filesDir);
+		File part = new File(dir, t.name+"."+t.size+".part");
+		t.close();
+		OutboundQueue queue = Server.connections.get(id);
+		if(!part.renameTo(new File(dir, t.name))){
+			uploading.remove(t.name);
+			if(queue != null)
+				queue.offer(Outgoing.line("Can't upload "+t.name+"."));
+			return;
+		}
+		uploading.remove(t.name);
+		if(queue != null)
+			queue.offer(Outgoing.line(answer(t)));
+		String who = Server.connections.getNickname(id);
+		Server.rooms.getMain().post(Message.system(System.currentTimeMillis(),
+				(who != null ? who : "Someone")+" uploaded "+t.name+" ("+t.size+" bytes), type "+Protocol.DOWNLOAD+" "+t.name+" to get it."));
+	}
+
+	/**
+	 * Closes an upload that is not complete, keeping its part
+	 */
+	private static void endUpload(Transfer t) {
+		t.close();
+		uploading.remove(t.name);
+	}
+
+	private static void download(int id, OutboundQueue queue, String name, long offset) {
+		if(downloads.containsKey(id)){
+			queue.offer(Outgoing.line("Wait for the download going on to end."));
+			return;
+		}
+		File file = new File(ServerConfig.filesDir, name);
+		Transfer t;
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			t = new Transfer(name, channel, channel.size(), 0);
+			t.position = Math.min(offset, t.size);
+		} catch (IOException e) {
+			queue.offer(Outgoing.line("No file called "+name+"."));
+			return;
+		}
+		// queued before the download is there for the writer, so it's written first
+		queue.offer(Outgoing.line(Protocol.FILE+" "+name+" "+t.size+" "+t.position));
+		downloads.put(id, t);
+	}
+
+	/**
+	 * Returns the download of a client, for its writer. A download asked for by a client
+	 * that doesn't use the binary format is given up.
+	 * @param id Connection id of the client
+	 * @param format Wire format of the client
+	 * @return The download, or null if there is none
+	 */
+	public static Transfer download(int id, int format) {
+		Transfer t = downloads.get(id);
+		if(t == null || format == Protocol.BINARY)
+			return t;
+		finished(id, t);
+		OutboundQueue queue = Server.connections.get(id);
+		if(queue != null)
+			queue.offer(Outgoing.line("Files can be downloaded in the binary format only."));
+		return null;
+	}
+
+	/**
+	 * Ends a download, complete or not
+	 */
+	public static void finished(int id, Transfer t) {
+		if(downloads.remove(id, t))
+			t.close();
+	}
+
+	/**
+	 * Ends the transfers of a disconnected client
+	 * @param id Connection id of the client
+	 */
+	public static void close(int id) {
+		Transfer t = uploads.remove(id);
+		if(t != null)
+			endUpload(t);
+		t = downloads.remove(id);
+		if(t != null)
+			t.close();
+	}
+
+}//class FileStore
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary wire format, used by clients that start with "/sync <last seen> binary".
+ * Every frame is [length: int][type: byte][fields], where length counts the type byte
+ * and the fields. All numbers are big-endian, all text is UTF-8.
+ *
+ * Server to client:
+ * CHAT - [seq: long][timestamp: long][sender id: int][text], sender id -1 for the
+ * Server's own messages,
+ * SENDER - [sender id: int][nickname], sent before the first CHAT frame with that id,
+ * TEXT - [line], anything that isn't a stored message, e.g. "/truncated 12",
+ * ROOM_CHAT - [seq: long][timestamp: long][sender id: int][room length: int][room][text],
+ * a message of a room other than the main one; seq counts in that room.
+ *
+ * Client to server:
+ * SEND - [nickname length: int][nickname][text].
+ *
+ * Both ways:
+ * FILE_CHUNK - [offset: long][bytes], a piece of the file being uploaded or downloaded
+ * over the connection, see FileStore.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Frames {
+
+	public static final byte CHAT = 1;
+	public static final byte SENDER = 2;
+	public static final byte TEXT = 3;
+	public static final byte SEND = 4;
+	public static final byte ROOM_CHAT = 5;
+	public static final byte FILE_CHUNK = 6;
+
+	/**
+	 * Length of the length field in front of every frame
+	 */
+	public static final int HEADER = 4;
+
+	/**
+	 * Longest frame (without the length field) either side accepts
+	 */
+	public static final int MAX_FRAME = 1024 * 1024;
+
+	/**
+	 * The most bytes of a file in a FILE_CHUNK frame
+	 */
+	public static final int CHUNK_BYTES = 32 * 1024;
+
+	/**
+	 * Length of what fileChunkHeader() writes
+	 */
+	public static final int FILE_CHUNK_HEADER = HEADER + 1 + 8;
+
+	public static byte[] chat(long seq, long timestamp, int senderId, String text) {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = start(CHAT, 20 + body.length);
+		frame.putLong(seq);
+		frame.putLong(timestamp);
+		frame.putInt(senderId);
+		frame.put(body);
+		return frame.array();
+	}
+
+	public static byte[] roomChat(long seq, long timestamp, int senderId, String room, String text) {
+		byte[] name = room.getBytes(StandardCharsets.UTF_8);
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = start(ROOM_CHAT, 24 + name.length + body.length);
+		frame.putLong(seq);
+		frame.putLong(timestamp);
+		frame.putInt(senderId);
+		frame.putInt(name.length);
+		frame.put(name);
+		frame.put(body);
+		return frame.array();
+	}
+
+	public static byte[] sender(int senderId, String nickname) {
+		byte[] name = nickname.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = start(SENDER, 4 + name.length);
+		frame.putInt(senderId);
+		frame.put(name);
+		return frame.array();
+	}
+
+	public static byte[] text(String line) {
+		byte[] body = line.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = start(TEXT, body.length);
+		frame.put(body);
+		return frame.array();
+	}
+
+	public static byte[] send(String nickname, String text) {
+		byte[] name = nickname.getBytes(StandardCharsets.UTF_8);
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = start(SEND, 4 + name.length + body.length);
+		frame.putInt(name.length);
+		frame.put(name);
+		frame.put(body);
+		return frame.array();
+	}
+
+	/**
+	 * Writes the start of a FILE_CHUNK frame, the bytes of the file follow it
+	 * @param header At least FILE_CHUNK_HEADER bytes free, filled from its position
+	 * @param offset Where the bytes are in the file
+	 * @param length Number of the bytes
+	 */
+	public static void fileChunkHeader(ByteBuffer header, long offset, int length) {
+		header.putInt(1 + 8 + length);
+		header.put(FILE_CHUNK);
+		header.putLong(offset);
+	}
+
+	public static byte[] fileChunk(long offset, byte[] data, int length) {
+		ByteBuffer frame = start(FILE_CHUNK, 8 + length);
+		frame.putLong(offset);
+		frame.put(data, 0, length);
+		return frame.array();
+	}
+
+	/**
+	 * Tells if a buffer holds a complete frame at its position. Doesn't move the position.
+	 * @param buf Received bytes, ready for reading
+	 * @return Length of the frame (without the length field), or -1 if more bytes are needed
+	 * @throws IllegalArgumentException If the length is out of range
+	 */
+	public static int available(ByteBuffer buf) {
+		if(buf.remaining() < HEADER)
+			return -1;
+		int length = buf.getInt(buf.position());
+		if(length < 1 || length > MAX_FRAME)
+			throw new IllegalArgumentException("Bad frame length "+length);
+		return buf.remaining() - HEADER >= length ? length : -1;
+	}
+
+	/**
+	 * Decodes a SEND frame received by the Server into a message
+	 * @param frame The fields of the frame, from the position to the limit
+	 * @param timestamp When the frame was received
+	 * @return The message
+	 * @throws IOException If the frame is malformed, as it comes from a client
+	 */
+	public static Message decodeSend(ByteBuffer frame, long timestamp) throws IOException {
+		if(frame.remaining() < 4)
+			throw new IOException("SEND frame too short");
+		int nameLength = frame.getInt();
+		if(nameLength < 0 || nameLength > frame.remaining())
+			throw new IOException("Bad nickname length "+nameLength);
+		String nickname = utf8(frame, nameLength);
+		String text = utf8(frame, frame.remaining());
+		return new Message(timestamp, nickname, text);
+	}
+
+	/**
+	 * Decodes UTF-8 text straight from a buffer and moves its position past the text
+	 * @param buf The buffer
+	 * @param length Number of bytes
+	 * @return The text
+	 */
+	public static String utf8(ByteBuffer buf, int length) {
+		String s;
+		if(buf.hasArray()){
+			s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+			buf.position(buf.position() + length);
+		}
+		else{
+			ByteBuffer part = buf.slice();
+			part.limit(length);
+			s = StandardCharsets.UTF_8.decode(part).toString();
+			buf.position(buf.position() + length);
+		}
+		return s;
+	}
+
+	private static ByteBuffer start(byte type, int fieldsLength) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER + 1 + fieldsLength);
+		frame.putInt(1 + fieldsLength);
+		frame.put(type);
+		return frame;
+	}
+
+}//class Frames
@@ -0,0 +1,74 @@
+/**
+ * Tells a dead client from a quiet one. A client that has said nothing for
+ * ServerConfig.heartbeatMillis gets "/ping", to which it answers "/pong"; one that
+ * has said nothing at all for ServerConfig.idleTimeoutMillis is disconnected by
+ * closing its queue, like a client whose connection broke, and counted in
+ * Metrics.evicted.
+ *
+ * Receiving something only sets the time of the last activity. The heartbeat sits in
+ * Server.wheel and, when it's due, looks at that time and either schedules itself
+ * again or acts, so there is no timer per connection to reset on every message.
+ *
+ * Only clients that start with "/sync" get heartbeats; older ones don't know "/ping".
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Heartbeat extends TimingWheel.Task {
+
+	private final int id;
+	private final OutboundQueue queue;
+	private volatile long lastActivity = System.currentTimeMillis();
+
+	private Heartbeat(int id, OutboundQueue queue) {
+		this.id = id;
+		this.queue = queue;
+	}
+
+	/**
+	 * Starts watching a client
+	 * @param id Connection id of the client
+	 * @param queue Outbound queue of the client
+	 * @return The heartbeat to touch() whenever the client sends something, or null if
+	 * heartbeats are switched off
+	 */
+	public static Heartbeat start(int id, OutboundQueue queue) {
+		TimingWheel wheel = Server.wheel;
+		if(wheel == null)
+			return null;
+		Heartbeat heartbeat = new Heartbeat(id, queue);
+		wheel.schedule(heartbeat, ServerConfig.heartbeatMillis);
+		return heartbeat;
+	}
+
+	/**
+	 * Notes that the client has sent something
+	 */
+	public void touch() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	@Override
+	protected void expire(TimingWheel wheel, long now) {
+		if(queue.isClosed())
+			return;
+		long idle = now - lastActivity;
+		if(idle >= ServerConfig.idleTimeoutMillis){
+			Metrics.evicted.increment();
+			ServerLog.connection("Client no "+id+" timed out");
+			queue.close();
+			return;
+		}
+		if(idle >= ServerConfig.heartbeatMillis){
+			// a client with messages waiting isn't reading; the ping wouldn't help, and
+			// the "block" policy would hold up the wheel
+			if(queue.isEmpty() && queue.offer(Outgoing.line(Protocol.PING)))
+				Metrics.pings.increment();
+			wheel.schedule(this, Math.min(ServerConfig.heartbeatMillis, ServerConfig.idleTimeoutMillis - idle));
+		}
+		else{
+			wheel.schedule(this, ServerConfig.heartbeatMillis - idle);
+		}
+	}
+
+}//class Heartbeat
@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in microseconds so that percentiles can be read from them, without
+ * keeping every value. Values below 64 have a bucket each; above that every power of
+ * two is split into 32 buckets, so a percentile is off by at most 1/32 (about 3%).
+ * Everything up to 2^40 us (almost two weeks) fits in about 1200 buckets.
+ *
+ * Any number of threads may record at the same time; the buckets are atomic counters.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 32;
+	private static final int MAX_SHIFT = 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * (MAX_SHIFT + 2));
+
+	/**
+	 * Records a duration
+	 * @param micros The duration in microseconds, negative ones count as 0
+	 */
+	public void record(long micros) {
+		counts.incrementAndGet(indexOf(micros));
+	}
+
+	/**
+	 * Number of recorded durations
+	 */
+	public long count() {
+		long total = 0;
+		for(int i = 0; i < counts.length(); i++){
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Reads a percentile
+	 * @param percent E.g. 50 for the median, 99.9 for p999
+	 * @return The lowest value of the bucket the percentile falls into, in microseconds,
+	 * 0 if nothing has been recorded
+	 */
+	public long percentile(double percent) {
+		long total = count();
+		if(total == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(total * percent / 100));
+		long seen = 0;
+		for(int i = 0; i < counts.length(); i++){
+			seen += counts.get(i);
+			if(seen >= rank)
+				return valueOf(i);
+		}
+		return valueOf(counts.length()-1);
+	}
+
+	/**
+	 * The longest recorded duration, within the precision of the buckets
+	 */
+	public long max() {
+		for(int i = counts.length()-1; i >= 0; i--){
+			if(counts.get(i) > 0)
+				return valueOf(i);
+		}
+		return 0;
+	}
+
+	/**
+	 * Forgets every recorded duration
+	 */
+	public void reset() {
+		for(int i = 0; i < counts.length(); i++){
+			counts.set(i, 0);
+		}
+	}
+
+	private static int indexOf(long micros) {
+		if(micros < 2 * SUB_BUCKETS)
+			return (int)Math.max(0, micros);
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - 5;
+		if(shift > MAX_SHIFT)
+			return SUB_BUCKETS * (MAX_SHIFT + 2) - 1;
+		return SUB_BUCKETS * shift + (int)(micros >>> shift);
+	}
+
+	private static long valueOf(int index) {
+		if(index < 2 * SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		return (long)(index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+
+}//class LatencyHistogram
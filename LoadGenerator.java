@@ -0,0 +1,393 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client without the GUI that puts load on a Server: opens many connections through
+ * ClientModel, sends from them at a steady rate and measures how long it takes for the
+ * messages to come back, e.g.
+ * "java LoadGenerator --connections=500 --rate=2 --size=200 --duration-s=60".
+ *
+ * Every message carries the time it was meant to be sent (System.nanoTime() of this
+ * process, so only this process can read it). The time is when the message was due,
+ * not when it was actually sent, so a generator that falls behind doesn't hide the delay.
+ * Every connection that receives a message records its delivery latency; messages sent
+ * before the connection was opened, which are replayed history, are not counted.
+ *
+ * With --storm-every-ms all connections are closed at once every so often and open again
+ * straight away, as after a restart of a proxy. The time from opening a socket until the
+ * first message from the Server is the connection setup time.
+ *
+ * With --transport=loopback the Server is started in this process and the connections
+ * go through memory instead of TCP, see LoopbackTransport, so what is measured is the
+ * Server itself. Its options are given with --server-args, e.g.
+ * "--server-args=--mode=virtual --heartbeat-ms=0".
+ *
+ * Once a second a line with the numbers of the last second is printed, at the end a
+ * summary of the whole run.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class LoadGenerator {
+
+	private static final String MARK = "~lg";
+
+	/**
+	 * Host and port of the Server
+	 */
+	private static String host = "127.0.0.1";
+	private static int port = 9999;
+
+	/**
+	 * "tcp", or "loopback" for a Server started in this process with serverArgs
+	 */
+	private static String transport = "tcp";
+	private static String serverArgs = "";
+
+	/**
+	 * Number of connections
+	 */
+	private static int connections = 100;
+
+	/**
+	 * Number of the connections that send, the others only receive. -1 for all.
+	 */
+	private static int senders = -1;
+
+	/**
+	 * Messages a second sent by every sending connection
+	 */
+	private static double rate = 1;
+
+	/**
+	 * Length of the text of a message in characters, at least as long as the time in it
+	 */
+	private static int size = 100;
+
+	/**
+	 * How long to send messages
+	 */
+	private static long durationSeconds = 30;
+
+	/**
+	 * Binary frames (true) or lines of text (false), see ClientModel
+	 */
+	private static boolean binary = true;
+
+	/**
+	 * How often all connections are dropped and opened again, 0 never
+	 */
+	private static long stormEveryMillis = 0;
+
+	private static final LatencyHistogram latency = new LatencyHistogram();
+	private static final LatencyHistogram intervalLatency = new LatencyHistogram();
+	private static final LatencyHistogram setup = new LatencyHistogram();
+	private static final AtomicLong sent = new AtomicLong();
+	private static final AtomicLong delivered = new AtomicLong();
+	private static final AtomicLong connects = new AtomicLong();
+	private static final AtomicLong failedConnects = new AtomicLong();
+
+	private static volatile boolean running = true;
+
+	/**
+	 * A single connection. Its thread connects, reads until the connection is closed and
+	 * connects again until the run is over. Sending is done by the scheduler.
+	 */
+	private static class Connection implements Runnable {
+
+		private final int number;
+		private final boolean sending;
+		private final String padding;
+
+		private volatile ClientModel model;
+
+		/**
+		 * System.nanoTime() when the connection was opened
+		 */
+		private volatile long openedAt;
+
+		Connection(int number, boolean sending) {
+			this.number = number;
+			this.sending = sending;
+			StringBuilder pad = new StringBuilder();
+			while(pad.length() < size - MARK.length() - 20){
+				pad.append('x');
+			}
+			this.padding = pad.toString();
+		}
+
+		@Override
+		public void run() {
+			while(running){
+				long start = System.nanoTime();
+				ClientModel m;
+				try {
+					m = new ClientModel(Transport.named(transport), host, port, binary);
+				} catch (IOException e) {
+					failedConnects.incrementAndGet();
+					sleep(100);
+					continue;
+				}
+				m.setNickname("lg"+number);
+				openedAt = start;
+				String msg = m.receiveMessage();
+				if(msg == null){
+					failedConnects.incrementAndGet();
+					m.close();
+					continue;
+				}
+				setup.record((System.nanoTime() - start) / 1000);
+				connects.incrementAndGet();
+				model = m;
+				while(msg != null){
+					onMessage(msg);
+					msg = m.receiveMessage();
+				}
+				model = null;
+				m.close();
+			}//while
+		}//run()
+
+		/**
+		 * Records the latency of a message that has the time of sending in it
+		 */
+		private void onMessage(String msg) {
+			int at = msg.indexOf(MARK);
+			if(at < 0)
+				return;
+			int end = msg.indexOf('~', at+MARK.length());
+			if(end < 0)
+				return;
+			long due;
+			try {
+				due = Long.parseLong(msg.substring(at+MARK.length(), end));
+			} catch (NumberFormatException e) {
+				return;
+			}
+			if(due < openedAt)
+				return;
+			long micros = (System.nanoTime() - due) / 1000;
+			latency.record(micros);
+			intervalLatency.record(micros);
+			delivered.incrementAndGet();
+		}
+
+		/**
+		 * Sends one message, called by the scheduler
+		 * @param due System.nanoTime() when the message was meant to be sent
+		 */
+		void send(long due) {
+			ClientModel m = model;
+			if(m == null)
+				return;
+			if(m.sendMessage(MARK+due+"~"+padding))
+				sent.incrementAndGet();
+		}
+
+		/**
+		 * Drops the connection; the thread connects again
+		 */
+		void drop() {
+			ClientModel m = model;
+			if(m != null)
+				m.close();
+		}
+	}//class Connection
+
+	public static void main(String[] args) throws Exception {
+		parse(args);
+		if(senders < 0 || senders > connections)
+			senders = connections;
+		if(transport.equals("loopback"))
+			startServer();
+		System.out.println("Connecting "+connections+" clients to "+host+":"+port+", "
+				+senders+" of them sending "+rate+" messages a second");
+
+		final ArrayList<Connection> all = new ArrayList<Connection>();
+		for(int i = 0; i < connections; i++){
+			Connection c = new Connection(i, i < senders);
+			all.add(c);
+			Thread t = new Thread(c, "lg"+i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+				Math.max(1, Runtime.getRuntime().availableProcessors()));
+		final long period = (long)(1e9 / rate);
+		final long start = System.nanoTime();
+		ArrayList<ScheduledFuture<?>> tasks = new ArrayList<ScheduledFuture<?>>();
+		for(int i = 0; i < all.size(); i++){
+			final Connection c = all.get(i);
+			if(!c.sending || rate <= 0)
+				continue;
+			// spread the connections over the period so they don't all send at once
+			final long offset = period * i / Math.max(1, senders);
+			tasks.add(scheduler.scheduleAtFixedRate(new Runnable() {
+				private long count = 0;
+				@Override
+				public void run() {
+					c.send(start + offset + count * period);
+					count++;
+				}
+			}, offset, period, TimeUnit.NANOSECONDS));
+		}
+		if(stormEveryMillis > 0){
+			tasks.add(scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					for(Connection c : all){
+						c.drop();
+					}
+				}
+			}, stormEveryMillis, stormEveryMillis, TimeUnit.MILLISECONDS));
+		}
+
+		long lastSent = 0;
+		long lastDelivered = 0;
+		for(long s = 1; s <= durationSeconds; s++){
+			sleep(start/1000000 + s*1000 - System.nanoTime()/1000000);
+			long nowSent = sent.get();
+			long nowDelivered = delivered.get();
+			System.out.println(s+"s: sent "+(nowSent-lastSent)+"/s, delivered "+(nowDelivered-lastDelivered)
+					+"/s, latency p50 "+millis(intervalLatency.percentile(50))
+					+" p99 "+millis(intervalLatency.percentile(99))+" ms, connects "+connects.get());
+			intervalLatency.reset();
+			lastSent = nowSent;
+			lastDelivered = nowDelivered;
+		}
+		for(ScheduledFuture<?> task : tasks){
+			task.cancel(false);
+		}
+		scheduler.shutdown();
+		// messages still on their way
+		sleep(1000);
+		running = false;
+		long elapsed = System.nanoTime() - start;
+		report(elapsed);
+		for(Connection c : all){
+			c.drop();
+		}
+		// the threads of the Server would keep running
+		if(transport.equals("loopback"))
+			System.exit(0);
+	}//main()
+
+	/**
+	 * Starts a Server over the loopback transport in the background and waits until it
+	 * listens
+	 */
+	private static void startServer() {
+		String[] given = serverArgs.trim().isEmpty() ? new String[0] : serverArgs.trim().split("\\s+");
+		final String[] args = new String[given.length + 2];
+		System.arraycopy(given, 0, args, 0, given.length);
+		args[given.length] = "--transport=loopback";
+		args[given.length+1] = "--port="+port;
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Server.main(args);
+			}
+		}, "server");
+		t.setDaemon(true);
+		t.start();
+		while(!LoopbackTransport.isListening(port) && t.isAlive()){
+			sleep(10);
+		}
+	}
+
+	private static void report(long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		System.out.println();
+		System.out.println("Sent:      "+sent.get()+" ("+Math.round(sent.get()/seconds)+"/s)");
+		System.out.println("Delivered: "+delivered.get()+" ("+Math.round(delivered.get()/seconds)+"/s)");
+		System.out.println("Latency ms:  p50 "+millis(latency.percentile(50))+"  p99 "+millis(latency.percentile(99))
+				+"  p999 "+millis(latency.percentile(99.9))+"  max "+millis(latency.max()));
+		System.out.println("Connects:  "+connects.get()+", failed "+failedConnects.get());
+		System.out.println("Setup ms:    p50 "+millis(setup.percentile(50))+"  p99 "+millis(setup.percentile(99))
+				+"  p999 "+millis(setup.percentile(99.9))+"  max "+millis(setup.max()));
+	}
+
+	private static String millis(long micros) {
+		return String.format("%.3f", micros / 1000.0);
+	}
+
+	private static void sleep(long millis) {
+		if(millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads options given as --name=value, like ServerConfig
+	 * @param args Arguments of the main() method
+	 */
+	private static void parse(String[] args) {
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(!arg.startsWith("--") || eq < 0){
+				System.out.println("Ignoring argument: "+arg);
+				continue;
+			}
+			String name = arg.substring(2, eq);
+			String value = arg.substring(eq+1);
+			try {
+				set(name, value);
+			} catch (IllegalArgumentException e) {
+				System.out.println("Wrong value of the option "+name+": "+value);
+			}
+		}
+	}
+
+	private static void set(String name, String value) {
+		if(name.equals("host")){
+			host = value;
+		}
+		else if(name.equals("port")){
+			port = Integer.parseInt(value);
+		}
+		else if(name.equals("transport")){
+			Transport.named(value);
+			transport = value;
+		}
+		else if(name.equals("server-args")){
+			serverArgs = value;
+		}
+		else if(name.equals("connections")){
+			connections = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("senders")){
+			senders = Integer.parseInt(value);
+		}
+		else if(name.equals("rate")){
+			rate = Double.parseDouble(value);
+		}
+		else if(name.equals("size")){
+			size = Math.max(0, Integer.parseInt(value));
+		}
+		else if(name.equals("duration-s")){
+			durationSeconds = Math.max(1, Long.parseLong(value));
+		}
+		else if(name.equals("format")){
+			if(!value.equals("binary") && !value.equals("text"))
+				throw new IllegalArgumentException(value);
+			binary = value.equals("binary");
+		}
+		else if(name.equals("storm-every-ms")){
+			stormEveryMillis = Math.max(0, Long.parseLong(value));
+		}
+		else{
+			System.out.println("Unknown option: "+name);
+		}
+	}
+
+}//class LoadGenerator
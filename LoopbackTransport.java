@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport inside a single process, without sockets or the kernel: a Server and
+ * ClientModels started in the same JVM with it talk through memory. Meant for tests
+ * and benchmarks, where the numbers should be those of the Server and not of TCP, and
+ * where thousands of connections don't use up ephemeral ports. The host is ignored,
+ * only the port tells Servers apart.
+ *
+ * Each direction of a connection is a Pipe: every write is copied into a ByteBuffer of
+ * its own and put into a ConcurrentLinkedQueue, which the reader takes them out of.
+ * Neither side takes a lock. A reader with nothing to read parks until the writer
+ * unparks it, and a writer parks while more than PIPE_CAPACITY bytes are waiting, like
+ * a full socket buffer, so a slow reader slows the writer down the same way as over TCP.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class LoopbackTransport implements Transport {
+
+	public static final LoopbackTransport INSTANCE = new LoopbackTransport();
+
+	/**
+	 * The most bytes written but not read yet in one direction before the writer waits
+	 */
+	public static final int PIPE_CAPACITY = 1024 * 1024;
+
+	/**
+	 * Listeners by port
+	 */
+	private static final ConcurrentHashMap<Integer, LoopbackListener> listeners = new ConcurrentHashMap<Integer, LoopbackListener>();
+
+	@Override
+	public Listener listen(int port) throws IOException {
+		LoopbackListener listener = new LoopbackListener(port);
+		if(listeners.putIfAbsent(port, listener) != null)
+			throw new BindException("Port "+port+" is taken");
+		return listener;
+	}
+
+	@Override
+	public Connection connect(String host, int port, int timeoutMillis) throws IOException {
+		LoopbackListener listener = listeners.get(port);
+		if(listener == null)
+			throw new ConnectException("Nobody listens on port "+port);
+		Pipe up = new Pipe();
+		Pipe down = new Pipe();
+		LoopbackConnection client = new LoopbackConnection(down, up);
+		listener.backlog.add(new LoopbackConnection(up, down));
+		return client;
+	}
+
+	/**
+	 * Tells if something listens on a port, so that whoever starts a Server in the
+	 * background knows when it's ready
+	 */
+	public static boolean isListening(int port) {
+		return listeners.containsKey(port);
+	}
+
+	private static class LoopbackListener implements Listener {
+		private final int port;
+		private final LinkedBlockingQueue<LoopbackConnection> backlog = new LinkedBlockingQueue<LoopbackConnection>();
+		private volatile boolean closed;
+
+		LoopbackListener(int port) {
+			this.port = port;
+		}
+
+		@Override
+		public Connection accept() throws IOException {
+			LoopbackConnection c;
+			try {
+				c = backlog.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if(closed)
+				throw new SocketException("Listener closed");
+			return c;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			listeners.remove(port, this);
+			// wakes up accept(), its connection is never read
+			Pipe nothing = new Pipe();
+			backlog.add(new LoopbackConnection(nothing, nothing));
+		}
+	}//class LoopbackListener
+
+	/**
+	 * One side of a connection: the pipe it reads and the pipe it writes
+	 */
+	private static class LoopbackConnection implements Connection {
+		private final Pipe in;
+		private final Pipe out;
+		private final InputStream input;
+		private final OutputStream output;
+
+		LoopbackConnection(final Pipe in, final Pipe out) {
+			this.in = in;
+			this.out = out;
+			this.input = new InputStream() {
+				private final byte[] one = new byte[1];
+
+				@Override
+				public int read() throws IOException {
+					return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return in.read(b, off, len);
+				}
+
+				@Override
+				public int available() {
+					return in.available();
+				}
+
+				@Override
+				public void close() {
+					LoopbackConnection.this.close();
+				}
+			};
+			this.output = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] {(byte) b}, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() {
+					LoopbackConnection.this.close();
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return input;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return output;
+		}
+
+		@Override
+		public void setReadTimeout(int millis) {
+			in.timeoutMillis = millis;
+		}
+
+		/**
+		 * What hasn't been read is thrown away; what has been written is still read by
+		 * the other side
+		 */
+		@Override
+		public void close() {
+			in.close(true);
+			out.close(false);
+		}
+	}//class LoopbackConnection
+
+	/**
+	 * Bytes going one way. One thread writes and one reads at a time, as with the streams
+	 * of a Socket.
+	 */
+	private static class Pipe {
+		private final ConcurrentLinkedQueue<ByteBuffer> chunks = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		/**
+		 * Bytes in chunks, including what's left of the chunk being read
+		 */
+		private final AtomicLong buffered = new AtomicLong();
+
+		/**
+		 * The chunk being read, touched by the reader only
+		 */
+		private ByteBuffer current;
+
+		/**
+		 * Threads waiting for something to read and for room to write, null if none
+		 */
+		private volatile Thread reader;
+		private volatile Thread writer;
+
+		/**
+		 * Set when either side closes; dropped when the reader does, see close()
+		 */
+		private volatile boolean closed;
+		private volatile boolean dropped;
+		private volatile int timeoutMillis;
+
+		void write(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return;
+			while(!closed && buffered.get() >= PIPE_CAPACITY){
+				writer = Thread.currentThread();
+				// checked again after saying who waits, so the reader's unpark can't be missed
+				if(!closed && buffered.get() >= PIPE_CAPACITY)
+					LockSupport.park(this);
+				writer = null;
+				if(Thread.interrupted())
+					throw new InterruptedIOException();
+			}
+			if(closed)
+				throw new SocketException("Connection closed");
+			byte[] copy = new byte[len];
+			System.arraycopy(b, off, copy, 0, len);
+			buffered.addAndGet(len);
+			chunks.offer(ByteBuffer.wrap(copy));
+			// the reader may have dropped the pipe before the offer, which mustn't stay in it
+			if(dropped)
+				drain();
+			Thread t = reader;
+			if(t != null)
+				LockSupport.unpark(t);
+		}
+
+		int read(byte[] b, int off, int len) throws IOException {
+			if(dropped){
+				// what's left of the chunk being read is thrown away too
+				if(current != null){
+					buffered.addAndGet(-current.remaining());
+					current = null;
+				}
+				return -1;
+			}
+			if(len == 0)
+				return 0;
+			long deadline = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1000000L : 0;
+			while(current == null || !current.hasRemaining()){
+				current = chunks.poll();
+				if(current != null)
+					break;
+				if(closed){
+					// what was written before closing is read first
+					if(dropped || chunks.isEmpty())
+						return -1;
+					continue;
+				}
+				reader = Thread.currentThread();
+				if(chunks.isEmpty() && !closed){
+					if(deadline == 0){
+						LockSupport.park(this);
+					}
+					else{
+						long left = deadline - System.nanoTime();
+						if(left <= 0){
+							reader = null;
+							throw new SocketTimeoutException("Read timed out");
+						}
+						LockSupport.parkNanos(this, left);
+					}
+				}
+				reader = null;
+			}
+			int n = Math.min(len, current.remaining());
+			current.get(b, off, n);
+			if(buffered.addAndGet(-n) < PIPE_CAPACITY){
+				Thread t = writer;
+				if(t != null)
+					LockSupport.unpark(t);
+			}
+			return n;
+		}
+
+		int available() {
+			return current != null ? current.remaining() : 0;
+		}
+
+		/**
+		 * @param drop true to throw away what hasn't been read
+		 */
+		void close(boolean drop) {
+			closed = true;
+			if(drop){
+				dropped = true;
+				drain();
+			}
+			Thread t = reader;
+			if(t != null)
+				LockSupport.unpark(t);
+			t = writer;
+			if(t != null)
+				LockSupport.unpark(t);
+		}
+
+		/**
+		 * Throws away what hasn't been read, so that buffered counts only what's left
+		 */
+		private void drain() {
+			ByteBuffer chunk;
+			while((chunk = chunks.poll()) != null){
+				buffered.addAndGet(-chunk.remaining());
+			}
+		}
+	}//class Pipe
+
+}//class LoopbackTransport
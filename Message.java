@@ -0,0 +1,139 @@
+/**
+ * A single message kept by the Server: when it was received, who sent it and what it
+ * says. Clients still get it as a single line of text, see toString().
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Message {
+
+	/**
+	 * Number of the message in the history, -1 if it isn't stored
+	 */
+	private final long seq;
+
+	/**
+	 * When the Server received the message, in milliseconds since the epoch
+	 */
+	private final long timestamp;
+
+	/**
+	 * Nickname of the author, "" if the line had no nickname in it, null for messages
+	 * created by the Server itself (like "Client no 3 connected.")
+	 */
+	private final String sender;
+
+	private final String body;
+
+	/**
+	 * Name of the room the message was sent to, null for the main room
+	 */
+	private final String room;
+
+	public Message(long timestamp, String sender, String body) {
+		this(-1, timestamp, sender, body);
+	}
+
+	public Message(long seq, long timestamp, String sender, String body) {
+		this(seq, timestamp, sender, body, null);
+	}
+
+	public Message(long seq, long timestamp, String sender, String body, String room) {
+		this.seq = seq;
+		this.timestamp = timestamp;
+		this.sender = sender;
+		this.body = body;
+		this.room = room;
+	}
+
+	/**
+	 * Splits a line received from a client into the nickname and the text. Clients send
+	 * lines like "Lukasz: Example message"; a line without ": " has no nickname.
+	 * @param timestamp When the line was received
+	 * @param line The line as received
+	 * @return The message
+	 */
+	public static Message parse(long timestamp, String line) {
+		int colon = line.indexOf(": ");
+		if(colon <= 0)
+			return new Message(timestamp, "", line);
+		return new Message(timestamp, line.substring(0, colon), line.substring(colon+2));
+	}
+
+	/**
+	 * Creates a message sent by the Server itself
+	 * @param timestamp When the message was created
+	 * @param body The text
+	 * @return The message
+	 */
+	public static Message system(long timestamp, String body) {
+		return new Message(timestamp, null, body);
+	}
+
+	/**
+	 * Returns the same message with its number in the history
+	 * @param newSeq The number
+	 * @return The numbered message
+	 */
+	public Message withSeq(long newSeq) {
+		return new Message(newSeq, timestamp, sender, body, room);
+	}
+
+	/**
+	 * Returns the same message in another room
+	 * @param newRoom Name of the room, null for the main room
+	 * @return The message in that room
+	 */
+	public Message inRoom(String newRoom) {
+		return new Message(seq, timestamp, sender, body, newRoom);
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	public boolean isSystem() {
+		return sender == null;
+	}
+
+	/**
+	 * Formats the time of a message the way it's shown to the users
+	 * @param millis Time in milliseconds since the epoch
+	 * @return Time like "12:34:01"
+	 */
+	public static String formatTime(long millis) {
+		return Stamper.get().time(millis);
+	}
+
+	/**
+	 * The message as sent to clients, e.g. "(12:34:01) Lukasz: Example message".
+	 * Messages of the Server itself have no time in front of them. Messages of rooms
+	 * other than the main one start with the room's name, e.g. "[java] (12:34:01) ...".
+	 */
+	@Override
+	public String toString() {
+		String prefix = room == null ? "" : "["+room+"] ";
+		if(sender == null)
+			return prefix+body;
+		if(sender.isEmpty())
+			return prefix+"("+formatTime(timestamp)+") "+body;
+		return prefix+"("+formatTime(timestamp)+") "+sender+": "+body;
+	}
+
+}//class Message
@@ -0,0 +1,409 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Every message the Server has seen, numbered from 0 in the order they arrived.
+ * The number is the message's sequence number, which clients use to ask only for
+ * the messages they haven't seen (see Protocol).
+ * The most recent messages are kept in memory in a fixed-size ring of compact records:
+ * 8 bytes of the timestamp, 4 bytes of the sender's number and the text in UTF-8.
+ * Nicknames are stored once in a table, every record only refers to it.
+ *
+ * When the ring is full or the records take more than the memory budget, the oldest
+ * records are moved (spilled) to segment files on disk. Reading an old message loads
+ * the whole page of PAGE records it belongs to; a few recently used pages are cached.
+ *
+ * All methods are synchronized. The Server also holds the lock of the history while
+ * it stores and broadcasts a message, so messages are stored and sent in one order.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class MessageHistory {
+
+	/**
+	 * Number of records in a page, the unit of reading from disk
+	 */
+	private static final int PAGE = 64;
+
+	/**
+	 * Sender number of the messages created by the Server itself
+	 */
+	private static final int SYSTEM = -1;
+
+	/**
+	 * Name of the room whose history this is, null for the main room
+	 */
+	private final String room;
+
+	//sender table
+	private final HashMap<String, Integer> senderIds = new HashMap<String, Integer>();
+	private final ArrayList<String> senders = new ArrayList<String>();
+
+	//memory tier
+	private final byte[][] ring;
+	private final long budgetBytes;
+	private int head = 0;
+	private int ringCount = 0;
+	private long ringBytes = 0;
+
+	/**
+	 * Number of the oldest message in the ring. All older messages are on disk.
+	 */
+	private long ringStart = 0;
+
+	//disk tier
+	private final File dir;
+	private final long segmentBytes;
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private DataOutputStream spillOutput;
+	private final LinkedHashMap<Long, byte[][]> pages;
+
+	/**
+	 * Words of the messages, null if searching is switched off
+	 */
+	private SearchIndex index;
+
+	//statistics
+	private long evicted = 0;
+	private long spilledBytes = 0;
+	private long pageIns = 0;
+	private long pageHits = 0;
+
+	/**
+	 * Creates an empty history. Segment files left in the directory by a previous run
+	 * are deleted.
+	 * @param dir Directory of the segment files
+	 * @param slots Most messages kept in memory
+	 * @param budgetBytes Most bytes of records kept in memory
+	 * @param segmentBytes Size of a segment file after which a new one is started
+	 * @param cachedPages Number of pages read from disk that are kept in memory
+	 */
+	public MessageHistory(File dir, int slots, long budgetBytes, long segmentBytes, int cachedPages) {
+		this(dir, null, slots, budgetBytes, segmentBytes, cachedPages);
+	}
+
+	/**
+	 * Creates an empty history of a room. See the constructor above.
+	 * @param room Name of the room, null for the main room
+	 */
+	public MessageHistory(File dir, String room, int slots, long budgetBytes, long segmentBytes, final int cachedPages) {
+		this.room = room;
+		this.ring = new byte[slots][];
+		this.budgetBytes = budgetBytes;
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.pages = new LinkedHashMap<Long, byte[][]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[][]> eldest) {
+				return size() > cachedPages;
+			}
+		};
+		dir.mkdirs();
+		File[] old = dir.listFiles();
+		if(old != null){
+			for(File f : old){
+				if(f.getName().startsWith("segment-"))
+					f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Creates a history configured by ServerConfig
+	 * @return The new history
+	 */
+	public static MessageHistory fromConfig() {
+		MessageHistory history = new MessageHistory(new File(ServerConfig.historyDir), ServerConfig.historySlots,
+				ServerConfig.historyBudgetBytes, ServerConfig.historySegmentBytes, ServerConfig.historyCachedPages);
+		if(ServerConfig.search)
+			history.enableSearch();
+		return history;
+	}
+
+	/**
+	 * Creates the history of a room other than the main one, configured by ServerConfig.
+	 * Its segment files go to a subdirectory of the main history's directory.
+	 * @param room Name of the room
+	 * @return The new history
+	 */
+	public static MessageHistory fromConfig(String room) {
+		MessageHistory history = new MessageHistory(new File(ServerConfig.historyDir, "room-"+room), room, ServerConfig.roomSlots,
+				ServerConfig.roomBudgetBytes, ServerConfig.historySegmentBytes, ServerConfig.historyCachedPages);
+		if(ServerConfig.search)
+			history.enableSearch();
+		return history;
+	}
+
+	/**
+	 * Starts indexing the words of the messages appended from now on, see search()
+	 */
+	public synchronized void enableSearch() {
+		if(index == null)
+			index = new SearchIndex();
+	}
+
+	/**
+	 * Stores a message
+	 * @param msg The message
+	 * @return Number of the message
+	 */
+	public synchronized long append(Message msg) {
+		byte[] record = toRecord(msg);
+		while(ringCount > 0 && (ringCount == ring.length || ringBytes + cost(record) > budgetBytes)){
+			evictOldest();
+		}
+		ring[(head + ringCount) % ring.length] = record;
+		ringCount++;
+		ringBytes += cost(record);
+		long seq = ringStart + ringCount - 1;
+		if(index != null)
+			index.add(seq, msg);
+		return seq;
+	}
+
+	/**
+	 * Number of messages stored so far, which is also the number the next one gets
+	 */
+	public synchronized long size() {
+		return ringStart + ringCount;
+	}
+
+	/**
+	 * Returns a stored message, loading it from disk if it's no longer in memory
+	 * @param index Number of the message
+	 * @return The message, numbered with its index
+	 */
+	public synchronized Message get(long index) {
+		if(index < 0 || index >= size())
+			throw new IndexOutOfBoundsException("No message "+index);
+		if(index >= ringStart)
+			return fromRecord(index, ring[(int) ((head + index - ringStart) % ring.length)]);
+		try {
+			return fromRecord(index, page(index / PAGE)[(int) (index % PAGE)]);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Copies messages with numbers from..to-1 to the list
+	 * @param from Number of the first message
+	 * @param to Number after the last message
+	 * @param out Where the messages go
+	 */
+	public synchronized void read(long from, long to, List<Message> out) {
+		for(long i = from; i < to; i++){
+			out.add(get(i));
+		}
+	}
+
+	/**
+	 * Finds the messages that contain all the words of a query. Neither the history nor,
+	 * but for a moment, the index is locked while searching, so appending to the room
+	 * doesn't wait for a search. Then every found message is read like by get().
+	 * @param query The words
+	 * @param limit The most messages to find
+	 * @param out Where the messages go, newest first
+	 * @return false if searching is switched off
+	 */
+	public boolean search(String query, int limit, List<Message> out) {
+		SearchIndex searched;
+		synchronized(this){
+			searched = index;
+		}
+		if(searched == null)
+			return false;
+		long[] found = searched.search(query, limit);
+		for(int i = 0; i < found.length; i++){
+			out.add(get(found[i]));
+		}
+		return true;
+	}
+
+	//Below: statistics of the memory tier and the disk tier
+
+	public synchronized int getMemoryCount() {
+		return ringCount;
+	}
+	public synchronized long getMemoryBytes() {
+		return ringBytes;
+	}
+	public synchronized long getEvicted() {
+		return evicted;
+	}
+	public synchronized long getSpilledBytes() {
+		return spilledBytes;
+	}
+	public synchronized long getPageIns() {
+		return pageIns;
+	}
+	public synchronized long getPageHits() {
+		return pageHits;
+	}
+
+	/**
+	 * Statistics in one line, e.g. for the Server's log
+	 */
+	public synchronized String getStats() {
+		String stats = "history: "+size()+" messages, "+ringCount+" in memory ("+ringBytes+" bytes), "
+				+evicted+" evicted ("+spilledBytes+" bytes on disk), "+pageIns+" page-ins, "+pageHits+" page hits";
+		if(index != null)
+			stats += ", index: "+index.getWords()+" words, "+index.getPostings()+" postings ("+index.getBytes()+" bytes)";
+		return stats;
+	}
+
+	/**
+	 * Memory taken by a record, including the array header
+	 */
+	private static long cost(byte[] record) {
+		return record.length + 16;
+	}
+
+	private byte[] toRecord(Message msg) {
+		byte[] body = msg.getBody().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(12 + body.length);
+		record.putLong(msg.getTimestamp());
+		record.putInt(msg.isSystem() ? SYSTEM : senderId(msg.getSender()));
+		record.put(body);
+		return record.array();
+	}
+
+	private Message fromRecord(long index, byte[] record) {
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		long timestamp = buf.getLong();
+		int sender = buf.getInt();
+		String body = new String(record, 12, record.length-12, StandardCharsets.UTF_8);
+		return new Message(index, timestamp, sender == SYSTEM ? null : senders.get(sender), body, room);
+	}
+
+	/**
+	 * Returns the number of a nickname in the sender table, adding it if it's new.
+	 * The numbers are also used by the binary wire format.
+	 * @param sender The nickname
+	 * @return Its number
+	 */
+	public synchronized int senderId(String sender) {
+		Integer id = senderIds.get(sender);
+		if(id == null){
+			id = senders.size();
+			senders.add(sender);
+			senderIds.put(sender, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Moves the oldest record of the ring to the current segment file
+	 */
+	private void evictOldest() {
+		byte[] record = ring[head];
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		ringCount--;
+		ringBytes -= cost(record);
+		try {
+			spill(ringStart, record);
+		} catch (IOException e) {
+			// The record is lost for good, but the ring keeps working
+			e.printStackTrace();
+		}
+		ringStart++;
+		evicted++;
+	}
+
+	private void spill(long index, byte[] record) throws IOException {
+		Segment last = segments.isEmpty() ? null : segments.get(segments.size()-1);
+		if(last == null || (index % PAGE == 0 && last.size >= segmentBytes)){
+			if(spillOutput != null)
+				spillOutput.close();
+			last = new Segment(new File(dir, "segment-"+index+".dat"), index);
+			segments.add(last);
+			spillOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(last.file), 65536));
+		}
+		if(index % PAGE == 0)
+			last.addPage();
+		spillOutput.writeInt(record.length);
+		spillOutput.write(record);
+		last.size += 4 + record.length;
+		last.count++;
+		spilledBytes += 4 + record.length;
+		pages.remove(index / PAGE);
+	}
+
+	/**
+	 * Returns the records of a page, from the cache or from disk
+	 */
+	private byte[][] page(long pageNumber) throws IOException {
+		byte[][] records = pages.get(pageNumber);
+		if(records != null){
+			pageHits++;
+			return records;
+		}
+		Segment segment = segmentOf(pageNumber * PAGE);
+		if(segment == segments.get(segments.size()-1))
+			spillOutput.flush();
+		int p = (int) (pageNumber - segment.firstIndex / PAGE);
+		long start = segment.pageOffsets[p];
+		long end = p+1 < segment.pageCount ? segment.pageOffsets[p+1] : segment.size;
+		long count = Math.min(PAGE, segment.firstIndex + segment.count - pageNumber * PAGE);
+
+		byte[] raw = new byte[(int) (end - start)];
+		RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+		try {
+			file.seek(start);
+			file.readFully(raw);
+		} finally {
+			file.close();
+		}
+		ByteBuffer buf = ByteBuffer.wrap(raw);
+		records = new byte[(int) count][];
+		for(int i = 0; i < count; i++){
+			records[i] = new byte[buf.getInt()];
+			buf.get(records[i]);
+		}
+		pages.put(pageNumber, records);
+		pageIns++;
+		return records;
+	}
+
+	private Segment segmentOf(long index) {
+		int low = 0;
+		int high = segments.size()-1;
+		while(low < high){
+			int mid = (low + high + 1) / 2;
+			if(segments.get(mid).firstIndex <= index)
+				low = mid;
+			else
+				high = mid-1;
+		}
+		return segments.get(low);
+	}
+
+	/**
+	 * A segment file: records firstIndex..firstIndex+count-1, each one written as its
+	 * length followed by the record. Only the offset of every page is kept in memory.
+	 */
+	private static class Segment {
+		final File file;
+		final long firstIndex;
+		long count = 0;
+		long size = 0;
+		long[] pageOffsets = new long[16];
+		int pageCount = 0;
+
+		Segment(File file, long firstIndex) {
+			this.file = file;
+			this.firstIndex = firstIndex;
+		}
+
+		void addPage() {
+			if(pageCount == pageOffsets.length)
+				pageOffsets = Arrays.copyOf(pageOffsets, pageCount*2);
+			pageOffsets[pageCount++] = size;
+		}
+	}//class Segment
+
+}//class MessageHistory
@@ -0,0 +1,363 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file with every message the Server has stored, so that the history
+ * survives a restart. Each record is written as:
+ * [length: int][CRC32 of the payload: int][payload], where the payload is
+ * [timestamp: long][sender length: int, -1 for the Server's own messages][sender][text].
+ * Messages of rooms other than the main one have -2 in place of the sender length,
+ * followed by [room length: int][room] and the fields above from the sender length on.
+ *
+ * append() only copies the record to a buffer. A separate thread writes the buffer
+ * and calls fsync once per ServerConfig.logSyncMillis, or sooner when
+ * ServerConfig.logSyncBatch records are waiting (group commit), so many messages share
+ * the cost of one fsync. Anyone who needs to know a message is on disk can wait for
+ * it with awaitDurable().
+ *
+ * A message is not sent to anyone before it's on disk, since its author takes the
+ * message coming back as the sign that it has arrived. Room.sequence() gives append()
+ * what to do once the record is durable, and after every fsync this thread does it for
+ * all the records it covered, in the order of the records. If writing or fsync fails,
+ * nothing is counted as durable: the records go back in front of the ones appended
+ * since and are written again after RETRY_MILLIS.
+ *
+ * On startup recover() reads the file through memory-mapped buffers, puts every
+ * record into the history and cuts off a torn record at the end of the file, left by
+ * a crash in the middle of a write.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class MessageLog implements Runnable {
+
+	/**
+	 * Length of the header in front of every payload
+	 */
+	private static final int HEADER = 8;
+
+	/**
+	 * Size of the part of the file mapped at once during recovery
+	 */
+	private static final long MAP_CHUNK = 256L * 1024 * 1024;
+
+	/**
+	 * Longest payload recovery accepts; anything longer is a torn or damaged record
+	 */
+	private static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+	/**
+	 * Written in place of the sender length when a room name follows
+	 */
+	private static final int ROOM = -2;
+
+	/**
+	 * How long to wait before writing again after a failed write or fsync
+	 */
+	private static final long RETRY_MILLIS = 1000;
+
+	private final FileChannel channel;
+	private final long syncMillis;
+	private final int syncBatch;
+	private final CRC32 crc = new CRC32();
+
+	//guarded by this
+	private ByteBuffer active = ByteBuffer.allocate(64 * 1024);
+	private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+	private long appended = 0;
+	private long written = 0;
+	private long durable = 0;
+
+	/**
+	 * What to do once the records in the active buffer are durable, one entry for each
+	 * record, null for none
+	 */
+	private ArrayList<Runnable> onDurable = new ArrayList<Runnable>();
+	private ArrayList<Runnable> spareOnDurable = new ArrayList<Runnable>();
+
+	/**
+	 * Opens the log file. Call recover() before appending anything.
+	 * @param file The log file, created if it doesn't exist
+	 * @param syncMillis Longest time a record waits for fsync
+	 * @param syncBatch Number of waiting records that triggers fsync earlier
+	 * @throws IOException If the file cannot be opened
+	 */
+	public MessageLog(File file, long syncMillis, int syncBatch) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.syncMillis = syncMillis;
+		this.syncBatch = syncBatch;
+	}
+
+	/**
+	 * Opens the log configured by ServerConfig, replays it into the histories of the
+	 * rooms and starts the thread that writes it.
+	 * @param rooms Where the recovered messages go, rooms are created as needed
+	 * @return The log, or null if ServerConfig.logFile is empty (logging disabled)
+	 * @throws IOException If the file cannot be opened or read
+	 */
+	public static MessageLog open(Rooms rooms) throws IOException {
+		if(ServerConfig.logFile.isEmpty())
+			return null;
+		MessageLog log = new MessageLog(new File(ServerConfig.logFile), ServerConfig.logSyncMillis, ServerConfig.logSyncBatch);
+		long start = System.currentTimeMillis();
+		long count = log.recover(rooms);
+		System.out.println("Recovered "+count+" messages in "+(System.currentTimeMillis()-start)+" ms");
+		Thread t = new Thread(log, "message-log");
+		t.setDaemon(true);
+		t.start();
+		return log;
+	}
+
+	/**
+	 * Reads every complete record of the file into the histories of the rooms. The file
+	 * is cut right after the last valid record.
+	 * @param rooms Where the messages go
+	 * @return Number of messages recovered
+	 * @throws IOException If the file cannot be read
+	 */
+	public long recover(Rooms rooms) throws IOException {
+		long size = channel.size();
+		long position = 0;
+		long count = 0;
+		byte[] scratch = new byte[1024];
+		MappedByteBuffer map = null;
+		long mapStart = 0;
+
+		while(position + HEADER <= size){
+			if(map == null || position + HEADER > mapStart + map.limit()){
+				mapStart = position;
+				map = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, Math.min(MAP_CHUNK, size - mapStart));
+			}
+			int at = (int) (position - mapStart);
+			int length = map.getInt(at);
+			int checksum = map.getInt(at + 4);
+			if(length < 12 || length > MAX_PAYLOAD || position + HEADER + length > size)
+				break;
+			if(at + HEADER + length > map.limit()){
+				mapStart = position;
+				map = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, Math.min(Math.max(MAP_CHUNK, HEADER + length), size - mapStart));
+				at = 0;
+			}
+			ByteBuffer payload = map.duplicate();
+			payload.position(at + HEADER);
+			payload.limit(at + HEADER + length);
+			crc.reset();
+			crc.update(payload.duplicate());
+			if((int) crc.getValue() != checksum)
+				break;
+			if(scratch.length < length)
+				scratch = new byte[Math.max(length, scratch.length*2)];
+			payload.get(scratch, 0, length);
+			Message msg = decode(scratch, length);
+			rooms.getOrCreate(msg.getRoom()).getHistory().append(msg);
+			position += HEADER + length;
+			count++;
+		}//while
+
+		if(position < size){
+			System.out.println("Message log: cutting off "+(size-position)+" bytes of a torn record at "+position);
+			channel.truncate(position);
+			channel.force(true);
+		}
+		channel.position(position);
+		return count;
+	}
+
+	/**
+	 * Adds a message to the log. Returns at once; the message is on disk after the next
+	 * group commit.
+	 * @param msg The message
+	 * @return Number of the record, to be passed to awaitDurable()
+	 */
+	public long append(Message msg) {
+		return append(msg, null);
+	}
+
+	/**
+	 * Adds a message to the log like append(Message), and says what to do once it's on disk
+	 * @param msg The message
+	 * @param then Run by the log's thread after the fsync that covers the record, in the
+	 * order of the records, null for nothing. It must not wait for the log.
+	 * @return Number of the record, to be passed to awaitDurable()
+	 */
+	public synchronized long append(Message msg, Runnable then) {
+		byte[] sender = msg.isSystem() ? new byte[0] : msg.getSender().getBytes(StandardCharsets.UTF_8);
+		byte[] body = msg.getBody().getBytes(StandardCharsets.UTF_8);
+		byte[] room = msg.getRoom() == null ? null : msg.getRoom().getBytes(StandardCharsets.UTF_8);
+		int length = 12 + sender.length + body.length + (room == null ? 0 : 8 + room.length);
+		if(active.remaining() < HEADER + length){
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(active.capacity()*2, active.position() + HEADER + length));
+			active.flip();
+			bigger.put(active);
+			active = bigger;
+		}
+		int start = active.position();
+		active.position(start + HEADER);
+		active.putLong(msg.getTimestamp());
+		if(room != null){
+			active.putInt(ROOM);
+			active.putInt(room.length);
+			active.put(room);
+		}
+		active.putInt(msg.isSystem() ? -1 : sender.length);
+		active.put(sender);
+		active.put(body);
+		crc.reset();
+		crc.update(active.array(), start + HEADER, length);
+		active.putInt(start, length);
+		active.putInt(start + 4, (int) crc.getValue());
+
+		onDurable.add(then);
+		appended++;
+		if(appended - written == 1 || appended - written >= syncBatch)
+			notifyAll();
+		return appended;
+	}
+
+	/**
+	 * Waits until a record is on disk
+	 * @param record Number returned by append()
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public synchronized void awaitDurable(long record) throws InterruptedException {
+		while(durable < record){
+			wait();
+		}
+	}
+
+	/**
+	 * The group commit loop: waits for records, then for the rest of the sync window
+	 * or a full batch, writes everything waiting and calls fsync once
+	 */
+	@Override
+	public void run() {
+		while(true){
+			ByteBuffer toWrite;
+			ArrayList<Runnable> toRun;
+			long target;
+			try {
+				synchronized(this){
+					while(appended == written){
+						wait();
+					}
+					long deadline = System.currentTimeMillis() + syncMillis;
+					long left;
+					while(appended - written < syncBatch && (left = deadline - System.currentTimeMillis()) > 0){
+						wait(left);
+					}
+					toWrite = active;
+					active = spare;
+					spare = null;
+					toRun = onDurable;
+					onDurable = spareOnDurable;
+					spareOnDurable = null;
+					target = appended;
+					written = target;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			toWrite.flip();
+			long start = -1;
+			try {
+				start = channel.position();
+				while(toWrite.hasRemaining()){
+					channel.write(toWrite);
+				}
+				channel.force(false);
+			} catch (IOException e) {
+				e.printStackTrace();
+				retry(start, toWrite, toRun);
+				try {
+					Thread.sleep(RETRY_MILLIS);
+				} catch (InterruptedException e1) {
+					return;
+				}
+				continue;
+			}
+			toWrite.clear();
+
+			synchronized(this){
+				spare = toWrite;
+				durable = target;
+				notifyAll();
+			}
+			for(int i = 0; i < toRun.size(); i++){
+				Runnable then = toRun.get(i);
+				if(then != null){
+					try {
+						then.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			toRun.clear();
+			synchronized(this){
+				spareOnDurable = toRun;
+			}
+		}//while(true)
+	}//run()
+
+	/**
+	 * Cuts off whatever part of a failed write reached the file and puts its records back
+	 * in front of the ones appended since, so they are written again
+	 * @param start Where the write started, -1 if not known
+	 * @param failed The records that failed, from the start of the buffer to its limit
+	 * @param toRun What to do once they are durable
+	 */
+	private void retry(long start, ByteBuffer failed, ArrayList<Runnable> toRun) {
+		try {
+			if(start >= 0){
+				channel.truncate(start);
+				channel.position(start);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		failed.position(0);
+		synchronized(this){
+			ByteBuffer merged = ByteBuffer.allocate(Math.max(64 * 1024, failed.remaining() + active.position()));
+			merged.put(failed);
+			active.flip();
+			merged.put(active);
+			active.clear();
+			spare = active;
+			active = merged;
+			toRun.addAll(onDurable);
+			onDurable.clear();
+			spareOnDurable = onDurable;
+			onDurable = toRun;
+			written = durable;
+		}
+	}
+
+	private static Message decode(byte[] payload, int length) {
+		ByteBuffer buf = ByteBuffer.wrap(payload, 0, length);
+		long timestamp = buf.getLong();
+		int senderLength = buf.getInt();
+		String room = null;
+		if(senderLength == ROOM){
+			int roomLength = buf.getInt();
+			room = new String(payload, buf.position(), roomLength, StandardCharsets.UTF_8);
+			buf.position(buf.position() + roomLength);
+			senderLength = buf.getInt();
+		}
+		String sender = null;
+		if(senderLength >= 0){
+			sender = new String(payload, buf.position(), senderLength, StandardCharsets.UTF_8);
+			buf.position(buf.position() + senderLength);
+		}
+		int bodyStart = buf.position();
+		return new Message(-1, timestamp, sender, new String(payload, bodyStart, length - bodyStart, StandardCharsets.UTF_8), room);
+	}
+
+}//class MessageLog
@@ -0,0 +1,287 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of the Server, in all modes. They are shown over JMX as the
+ * MBean "messenger:type=Server" (see MetricsMBean) and, every
+ * ServerConfig.statsEverySeconds, as a single line on System.out.
+ *
+ * Counters are LongAdders, so the threads that bump them on every message don't fight
+ * over a single cache line. Durations go into LatencyHistograms. What can be read from
+ * the Server's state at any time, like the number of connections or the size of the
+ * history, is not counted at all but read when asked for.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Metrics implements MetricsMBean {
+
+	/**
+	 * Messages received from clients, commands included
+	 */
+	public static final LongAdder messagesIn = new LongAdder();
+
+	/**
+	 * Lines and frames written to clients, replayed history included
+	 */
+	public static final LongAdder messagesOut = new LongAdder();
+
+	public static final LongAdder bytesIn = new LongAdder();
+	public static final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Messages thrown away by the "drop-oldest" policy of OutboundQueue
+	 */
+	public static final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Pings sent to quiet clients and clients disconnected for saying nothing, see Heartbeat
+	 */
+	public static final LongAdder pings = new LongAdder();
+	public static final LongAdder evicted = new LongAdder();
+
+	/**
+	 * Messages over a rate limit and their bytes, see RateLimiter
+	 */
+	public static final LongAdder throttled = new LongAdder();
+	public static final LongAdder throttledBytes = new LongAdder();
+
+	/**
+	 * How long it takes to queue a message for every member of a room
+	 */
+	public static final LatencyHistogram fanOut = new LatencyHistogram();
+
+	/**
+	 * How long it takes from accepting a connection until the client is registered
+	 * and its history is queued
+	 */
+	public static final LatencyHistogram accept = new LatencyHistogram();
+
+	/**
+	 * Values at the last stats line, to print rates
+	 */
+	private long lastTime = System.nanoTime();
+	private long lastIn, lastOut, lastBytesIn, lastBytesOut;
+
+	/**
+	 * Registers the MBean and starts printing the stats line if it's switched on
+	 */
+	public static void start() {
+		final Metrics metrics = new Metrics();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("messenger:type=Server"));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		if(ServerConfig.statsEverySeconds <= 0)
+			return;
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true){
+					try {
+						Thread.sleep(ServerConfig.statsEverySeconds * 1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+					System.out.println(metrics.nextStatsLine());
+				}
+			}
+		}, "stats");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Records the time since start in a histogram
+	 * @param histogram Where to record it
+	 * @param start System.nanoTime() at the start
+	 */
+	public static void since(LatencyHistogram histogram, long start) {
+		histogram.record((System.nanoTime() - start) / 1000);
+	}
+
+	@Override
+	public int getConnections() {
+		return Server.connections.size();
+	}
+
+	@Override
+	public int getConnectionsTotal() {
+		return Server.connections.getTotal();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	@Override
+	public long getPings() {
+		return pings.sum();
+	}
+
+	@Override
+	public long getEvicted() {
+		return evicted.sum();
+	}
+
+	@Override
+	public long getThrottled() {
+		return throttled.sum();
+	}
+
+	@Override
+	public long getThrottledBytes() {
+		return throttledBytes.sum();
+	}
+
+	@Override
+	public long getHistorySize() {
+		MessageHistory history = Server.history;
+		return history == null ? 0 : history.size();
+	}
+
+	@Override
+	public int getRooms() {
+		Rooms rooms = Server.rooms;
+		return rooms == null ? 0 : rooms.getAll().size();
+	}
+
+	/**
+	 * The most messages waiting for a single client
+	 */
+	@Override
+	public int getMaxBacklog() {
+		int max = 0;
+		for(OutboundQueue queue : Server.connections.getQueues()){
+			max = Math.max(max, queue.size());
+		}
+		return max;
+	}
+
+	/**
+	 * Messages waiting for all the clients together
+	 */
+	@Override
+	public long getTotalBacklog() {
+		long total = 0;
+		for(OutboundQueue queue : Server.connections.getQueues()){
+			total += queue.size();
+		}
+		return total;
+	}
+
+	@Override
+	public long getFanOutP50Micros() {
+		return fanOut.percentile(50);
+	}
+
+	@Override
+	public long getFanOutP99Micros() {
+		return fanOut.percentile(99);
+	}
+
+	@Override
+	public long getFanOutMaxMicros() {
+		return fanOut.max();
+	}
+
+	@Override
+	public long getAcceptP50Micros() {
+		return accept.percentile(50);
+	}
+
+	@Override
+	public long getAcceptP99Micros() {
+		return accept.percentile(99);
+	}
+
+	@Override
+	public long getAcceptMaxMicros() {
+		return accept.max();
+	}
+
+	@Override
+	public String getStatsLine() {
+		return statsLine(0, 0, 0, 0, 0);
+	}
+
+	@Override
+	public void resetLatencies() {
+		fanOut.reset();
+		accept.reset();
+	}
+
+	/**
+	 * The stats line with the rates since the previous one
+	 */
+	private synchronized String nextStatsLine() {
+		long now = System.nanoTime();
+		long in = getMessagesIn(), out = getMessagesOut(), rx = getBytesIn(), tx = getBytesOut();
+		String line = statsLine(now - lastTime, in - lastIn, out - lastOut, rx - lastBytesIn, tx - lastBytesOut);
+		lastTime = now;
+		lastIn = in;
+		lastOut = out;
+		lastBytesIn = rx;
+		lastBytesOut = tx;
+		return line;
+	}
+
+	/**
+	 * E.g. "stats conns=12/40 in=250/s out=3000/s rx=20KB/s tx=360KB/s dropped=0 evicted=0
+	 * throttled=0 fanout=8/35us accept=120/900us history=15000 rooms=3 backlog=4/17",
+	 * where fanout and accept are p50/p99 and backlog is max/total. Without an interval
+	 * the totals are printed instead of the rates.
+	 */
+	private String statsLine(long nanos, long in, long out, long rx, long tx) {
+		StringBuilder line = new StringBuilder("stats conns=");
+		line.append(getConnections()).append('/').append(getConnectionsTotal());
+		if(nanos > 0){
+			double seconds = nanos / 1e9;
+			line.append(" in=").append(Math.round(in / seconds)).append("/s");
+			line.append(" out=").append(Math.round(out / seconds)).append("/s");
+			line.append(" rx=").append(Math.round(rx / seconds / 1024)).append("KB/s");
+			line.append(" tx=").append(Math.round(tx / seconds / 1024)).append("KB/s");
+		}
+		else{
+			line.append(" in=").append(getMessagesIn());
+			line.append(" out=").append(getMessagesOut());
+			line.append(" rx=").append(getBytesIn() / 1024).append("KB");
+			line.append(" tx=").append(getBytesOut() / 1024).append("KB");
+		}
+		line.append(" dropped=").append(getDropped());
+		line.append(" evicted=").append(getEvicted());
+		line.append(" throttled=").append(getThrottled());
+		line.append(" fanout=").append(getFanOutP50Micros()).append('/').append(getFanOutP99Micros()).append("us");
+		line.append(" accept=").append(getAcceptP50Micros()).append('/').append(getAcceptP99Micros()).append("us");
+		line.append(" history=").append(getHistorySize());
+		line.append(" rooms=").append(getRooms());
+		line.append(" backlog=").append(getMaxBacklog()).append('/').append(getTotalBacklog());
+		return line.toString();
+	}
+
+}//class Metrics
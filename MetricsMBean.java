@@ -0,0 +1,56 @@
+/**
+ * What Metrics shows over JMX, e.g. in jconsole under "messenger:type=Server".
+ * Counters grow from the start of the Server; durations are in microseconds.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public interface MetricsMBean {
+
+	int getConnections();
+
+	int getConnectionsTotal();
+
+	long getMessagesIn();
+
+	long getMessagesOut();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getDropped();
+
+	long getPings();
+
+	long getEvicted();
+
+	long getThrottled();
+
+	long getThrottledBytes();
+
+	long getHistorySize();
+
+	int getRooms();
+
+	int getMaxBacklog();
+
+	long getTotalBacklog();
+
+	long getFanOutP50Micros();
+
+	long getFanOutP99Micros();
+
+	long getFanOutMaxMicros();
+
+	long getAcceptP50Micros();
+
+	long getAcceptP99Micros();
+
+	long getAcceptMaxMicros();
+
+	String getStatsLine();
+
+	void resetLatencies();
+
+}//interface MetricsMBean
@@ -0,0 +1,84 @@
+import java.io.*;
+import javax.sound.sampled.*;
+
+/**
+ * The sound played when a message from someone else arrives. The file is read and
+ * decoded once, into a few Clips that are opened at startup and played again and again,
+ * so a message costs no disk access and no new audio line. The Clips are never closed
+ * while the client runs, and there are never more of them.
+ *
+ * A burst of messages gives a single notification: after the sound has been played,
+ * it's not played again for the next interval, whatever arrives.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class NotificationSound {
+
+	private static final int CLIPS = 2;
+
+	private final Clip[] clips;
+	private int next = 0;
+	private final long intervalMillis;
+	private long lastPlayed = Long.MIN_VALUE / 2;
+
+	/**
+	 * Loads the sound. If it can't be read or no audio line is available, the client
+	 * works on silently.
+	 * @param fileName Name of the audio file
+	 * @param intervalMillis The shortest time between two notifications
+	 */
+	public NotificationSound(String fileName, long intervalMillis) {
+		this.intervalMillis = intervalMillis;
+		Clip[] opened = new Clip[CLIPS];
+		try {
+			AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(new File(fileName).getAbsoluteFile());
+			AudioFormat format = audioInputStream.getFormat();
+			byte[] data = readAll(audioInputStream);
+			DataLine.Info info = new DataLine.Info(Clip.class, format);
+			for(int i = 0; i < CLIPS; i++){
+				opened[i] = (Clip)AudioSystem.getLine(info);
+				opened[i].open(format, data, 0, data.length);
+			}
+		}
+		catch(Exception ex){
+			System.out.println("Error with loading sound, notifications are silent.");
+			ex.printStackTrace();
+			for(int i = 0; i < CLIPS; i++){
+				if(opened[i] != null)
+					opened[i].close();
+			}
+			opened = null;
+		}
+		clips = opened;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while((n = in.read(buffer)) > 0){
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Plays the sound, unless it was played less than the interval ago. The Clips are
+	 * taken in turn, so a notification doesn't cut off the previous one.
+	 * Called on the Event Dispatch Thread.
+	 */
+	public void play() {
+		long now = System.currentTimeMillis();
+		if(clips == null || now - lastPlayed < intervalMillis)
+			return;
+		lastPlayed = now;
+		Clip clip = clips[next];
+		next = (next + 1) % clips.length;
+		clip.stop();
+		clip.setFramePosition(0);
+		clip.start();
+	}
+
+}//class NotificationSound
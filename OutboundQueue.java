@@ -0,0 +1,176 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of encoded messages waiting to be written to a single client. The
+ * thread that broadcasts a message only puts it into the queues of all clients; the
+ * actual writing is done by a ClientWriter thread (threads and virtual modes) or by
+ * a selector thread of ServerReactor (nio mode). That way a slow client delays
+ * nobody but itself.
+ *
+ * When the queue is full, ServerConfig.slowConsumer decides what happens:
+ * "drop-oldest" - the oldest waiting message is thrown away,
+ * "disconnect" - the client is disconnected,
+ * "block" - the broadcasting thread waits up to ServerConfig.blockTimeoutMillis,
+ * then disconnects the client.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class OutboundQueue {
+
+	private final ArrayBlockingQueue<Outgoing> queue;
+
+	/**
+	 * Called after a message has been put into the queue. Used in the nio mode to ask
+	 * the selector thread for OP_WRITE. May be null.
+	 */
+	private final Runnable onReady;
+
+	/**
+	 * Called once when the client has to be disconnected
+	 */
+	private final Runnable onDisconnect;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Number of messages thrown away by the "drop-oldest" policy
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Creates an empty queue with ServerConfig.outboundCapacity slots
+	 * @param onReady Called when a message was put into the queue, may be null
+	 * @param onDisconnect Called once when the client should be disconnected
+	 */
+	public OutboundQueue(Runnable onReady, Runnable onDisconnect) {
+		this.queue = new ArrayBlockingQueue<Outgoing>(ServerConfig.outboundCapacity);
+		this.onReady = onReady;
+		this.onDisconnect = onDisconnect;
+	}
+
+	/**
+	 * Encodes a message as a line: UTF-8 bytes followed by '\n'. Done once per message
+	 * and wire format, see Outgoing.
+	 * @param msg A message to encode
+	 * @return Bytes ready to be written to a socket
+	 */
+	public static byte[] encode(String msg) {
+		return (msg+"\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Puts a message into the queue, applying the slow consumer policy if the
+	 * queue is full
+	 * @param msg The message, shared with the queues of other clients
+	 * @return false if the message was not queued because the client is disconnected
+	 */
+	public boolean offer(Outgoing msg) {
+		if(closed)
+			return false;
+		if(!queue.offer(msg)){
+			String policy = ServerConfig.slowConsumer;
+			if(policy.equals("drop-oldest")){
+				do {
+					if(queue.poll() != null){
+						dropped.incrementAndGet();
+						Metrics.dropped.increment();
+					}
+				} while(!queue.offer(msg));
+			}
+			else if(policy.equals("block")){
+				boolean queued = false;
+				try {
+					queued = queue.offer(msg, ServerConfig.blockTimeoutMillis, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if(!queued){
+					close();
+					return false;
+				}
+			}
+			else{
+				close();
+				return false;
+			}
+		}
+		if(onReady != null)
+			onReady.run();
+		return true;
+	}
+
+	/**
+	 * Waits for the next message
+	 * @return The oldest message in the queue
+	 * @throws InterruptedException If the writer is being stopped
+	 */
+	public Outgoing take() throws InterruptedException {
+		return queue.take();
+	}
+
+	/**
+	 * Takes the next message without waiting
+	 * @return The oldest message in the queue, null if it's empty
+	 */
+	public Outgoing poll() {
+		return queue.poll();
+	}
+
+	/**
+	 * Waits for the next message for a while
+	 * @param nanos How long to wait
+	 * @return The oldest message in the queue, null if none came in time
+	 * @throws InterruptedException If the writer is being stopped
+	 */
+	public Outgoing poll(long nanos) throws InterruptedException {
+		return queue.poll(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Moves up to max waiting messages to the batch without waiting
+	 * @param batch Where the messages go
+	 * @param max The most messages to move
+	 * @return Number of messages moved
+	 */
+	public int drainTo(Collection<Outgoing> batch, int max) {
+		return queue.drainTo(batch, max);
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Number of messages waiting to be written
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Stops accepting messages and disconnects the client. Safe to call more than once.
+	 */
+	public void close() {
+		synchronized(this){
+			if(closed)
+				return;
+			closed = true;
+		}
+		queue.clear();
+		onDisconnect.run();
+	}
+
+}//class OutboundQueue
@@ -0,0 +1,188 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A message on its way to the clients. It's encoded lazily, at most once for every
+ * wire format, and all the clients using that format share the same bytes.
+ *
+ * It may also stand for a whole range of a room's history (see replay() and page()),
+ * which is read and encoded only when the client's writer gets to it.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Outgoing {
+
+	/**
+	 * Sequence number of the message, -1 if it isn't stored in the history
+	 */
+	private final long seq;
+	private final long timestamp;
+	private final String sender;
+	private final String body;
+
+	/**
+	 * Name of the room, null for the main room
+	 */
+	private final String room;
+
+	/**
+	 * For replay(): the room and the numbers of the messages to read from its history
+	 */
+	private Room replayRoom;
+	private long replayFrom;
+	private long replayTo;
+
+	/**
+	 * true if the line goes after the range, as the answer to "/history"
+	 */
+	private boolean replayLineAfter;
+
+	/**
+	 * The line itself if it isn't a stored message, null otherwise. Stored messages
+	 * are stamped straight into bytes, see Stamper.
+	 */
+	private final String text;
+
+	//encoded forms, a race between two writers only means encoding twice
+	private volatile byte[] plain;
+	private volatile byte[] tagged;
+	private volatile byte[] binary;
+	private volatile int senderId = -2;
+
+	private Outgoing(long seq, long timestamp, String sender, String body, String room, String text) {
+		this.seq = seq;
+		this.timestamp = timestamp;
+		this.sender = sender;
+		this.body = body;
+		this.room = room;
+		this.text = text;
+	}
+
+	/**
+	 * Wraps a stored message
+	 * @param msg A message with its sequence number
+	 * @return The message ready to be queued
+	 */
+	public static Outgoing of(Message msg) {
+		return new Outgoing(msg.getSeq(), msg.getTimestamp(), msg.getSender(), msg.getBody(), msg.getRoom(), null);
+	}
+
+	/**
+	 * Wraps a line that isn't stored in the history, e.g. a reply to a command
+	 * @param line The line
+	 * @return The line ready to be queued
+	 */
+	public static Outgoing line(String line) {
+		return new Outgoing(-1, 0, null, line, null, line);
+	}
+
+	/**
+	 * Stands for the messages from..to-1 of a room, e.g. for a client that has just
+	 * joined it. If from is greater than 0, the client is told how many older messages
+	 * are left out.
+	 * @param room The room
+	 * @param from Number of the first message
+	 * @param to Number after the last message
+	 * @return The range ready to be queued
+	 */
+	public static Outgoing replay(Room room, long from, long to) {
+		String skipped = "["+room.getName()+"] "+Protocol.truncated(Protocol.TEXT, from);
+		Outgoing out = new Outgoing(-1, 0, null, skipped, null, skipped);
+		out.replayRoom = room;
+		out.replayFrom = from;
+		out.replayTo = to;
+		return out;
+	}
+
+	/**
+	 * Stands for the messages from..to-1 of a room asked for with "/history", followed
+	 * by the answer "/history <from> <to>"
+	 * @param room The room
+	 * @param from Number of the first message
+	 * @param to Number after the last message
+	 * @return The range ready to be queued
+	 */
+	public static Outgoing page(Room room, long from, long to) {
+		Outgoing out = line(Protocol.history(from, to));
+		out.replayRoom = room;
+		out.replayFrom = from;
+		out.replayTo = to;
+		out.replayLineAfter = true;
+		return out;
+	}
+
+	/**
+	 * Returns the message encoded for a wire format
+	 * @param format Protocol.TEXT, Protocol.TAGGED or Protocol.BINARY
+	 * @return Bytes ready to be written to a socket, must not be modified
+	 */
+	public byte[] bytes(int format) {
+		if(format == Protocol.BINARY){
+			byte[] b = binary;
+			if(b == null){
+				if(seq < 0)
+					b = Frames.text(text);
+				else if(room != null)
+					b = Frames.roomChat(seq, timestamp, getSenderId(), room, body);
+				else
+					b = Frames.chat(seq, timestamp, getSenderId(), body);
+				binary = b;
+			}
+			return b;
+		}
+		if(format == Protocol.TAGGED && seq >= 0 && room == null){
+			byte[] b = tagged;
+			if(b == null)
+				tagged = b = Stamper.get().toBytes(seq, timestamp, sender, body, null);
+			return b;
+		}
+		byte[] b = plain;
+		if(b == null)
+			plain = b = (text != null ? OutboundQueue.encode(text) : Stamper.get().toBytes(-1, timestamp, sender, body, room));
+		return b;
+	}
+
+	/**
+	 * Adds what a client needs to get the message to the list. In the binary format that
+	 * may be a SENDER frame first, if the client doesn't know the sender's number yet.
+	 * A replay() adds all the messages of its range.
+	 * @param format Wire format of the client
+	 * @param knownSenders Sender numbers the client already knows, updated here
+	 * @param out Where the encoded frames or lines go
+	 */
+	public void appendTo(int format, BitSet knownSenders, List<byte[]> out) {
+		if(replayRoom != null){
+			if(replayFrom > 0 && !replayLineAfter)
+				out.add(bytes(format));
+			ArrayList<Message> old = new ArrayList<Message>();
+			replayRoom.getHistory().read(replayFrom, replayTo, old);
+			for(int i = 0; i < old.size(); i++){
+				Outgoing.of(old.get(i)).appendTo(format, knownSenders, out);
+			}
+			if(replayLineAfter)
+				out.add(bytes(format));
+			return;
+		}
+		if(format == Protocol.BINARY && seq >= 0){
+			int id = getSenderId();
+			if(id >= 0 && !knownSenders.get(id)){
+				out.add(Frames.sender(id, sender));
+				knownSenders.set(id);
+			}
+		}
+		out.add(bytes(format));
+	}
+
+	/**
+	 * Number of the sender in the history's sender table, -1 for the Server's messages
+	 */
+	private int getSenderId() {
+		int id = senderId;
+		if(id == -2)
+			senderId = id = (sender == null ? -1 : Server.history.senderId(sender));
+		return id;
+	}
+
+}//class Outgoing
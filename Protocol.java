@@ -0,0 +1,401 @@
+/**
+ * What the Server and its clients say to each other besides plain messages.
+ * Lines starting with '/' are commands. A client that wants to sync its history starts
+ * the connection with "/sync <last seen>", where <last seen> is the sequence number
+ * of the newest message it already has (-1 if none). From then on every stored
+ * message it gets is tagged with its sequence number: "#<seq> <message>". Clients that
+ * don't send "/sync" get plain lines, as they always did.
+ *
+ * "/sync <last seen> <most>" asks for at most <most> of those messages, the newest ones,
+ * without being told about the rest; a client that has nothing yet uses it to get only
+ * what fits on its screen and asks for older messages when the user scrolls up to them:
+ * "/history <before> <count>" is answered with up to <count> messages of the main room
+ * numbered below <before>, tagged like the others, and then the line
+ * "/history <from> <to>" giving the numbers of the messages sent (from..to-1).
+ *
+ * A client that starts with "/sync <last seen> binary" switches to the binary format
+ * described in Frames. The Server answers with the line "/binary" and sends only
+ * frames after it. The client may keep sending lines until it gets the answer and
+ * frames after that; the Server tells them apart by the first byte, which is 0 for
+ * a frame and never 0 for a line.
+ *
+ * Messages whose text is "/join <room>" or "/leave <room>" are commands for rooms,
+ * see Rooms. Every client starts in the room called "main"; "#<seq>" and "/sync"
+ * numbers refer to that room only. Messages of other rooms start with "[<room>] ".
+ *
+ * "/nick <nickname>" claims a nickname for the connection; no two connections can
+ * have the same one. Once claimed, "/dm <nickname> <text>" sends a message to that
+ * connection only, which gets it as "[dm] <message>".
+ *
+ * Clients using the binary format can also move files, see FileStore:
+ * "/upload <name> <size>" is answered with "/upload <name> <offset> <bytes a second>",
+ * after which the client sends FILE_CHUNK frames from that offset on, and once more
+ * with the offset at the size when the file is complete;
+ * "/download <name> <offset>" is answered with "/file <name> <size> <offset>" and
+ * FILE_CHUNK frames. An interrupted transfer goes on from where it stopped when the
+ * command is sent again with the new offset.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Protocol {
+
+	/**
+	 * Wire format of the original clients: every message is a plain line of text
+	 */
+	public static final int TEXT = 0;
+
+	/**
+	 * Lines of text, stored messages prefixed with "#<seq> "
+	 */
+	public static final int TAGGED = 1;
+
+	/**
+	 * Length-prefixed frames, see Frames
+	 */
+	public static final int BINARY = 2;
+
+	/**
+	 * First line of a client that wants only the messages it hasn't seen
+	 */
+	public static final String SYNC = "/sync";
+
+	/**
+	 * Sent before a replay that leaves out some messages, followed by their number
+	 */
+	public static final String TRUNCATED = "/truncated";
+
+	/**
+	 * Server's answer to a client that asked for the binary format. Frames follow.
+	 */
+	public static final String BINARY_ACK = "/binary";
+
+	/**
+	 * Subscribes the client to a room, creating the room if it doesn't exist, and makes
+	 * it the room the client's messages go to
+	 */
+	public static final String JOIN = "/join";
+
+	/**
+	 * Unsubscribes the client from a room
+	 */
+	public static final String LEAVE = "/leave";
+
+	/**
+	 * Server's question to a client that has been quiet for a while, see Heartbeat
+	 */
+	public static final String PING = "/ping";
+
+	/**
+	 * Client's answer to PING
+	 */
+	public static final String PONG = "/pong";
+
+	/**
+	 * Finds the newest messages of the client's current room that contain all the given
+	 * words, see SearchIndex
+	 */
+	public static final String SEARCH = "/search";
+
+	/**
+	 * Claims a nickname for the connection
+	 */
+	public static final String NICK = "/nick";
+
+	/**
+	 * Sends a message to a single nickname
+	 */
+	public static final String DM = "/dm";
+
+	/**
+	 * Starts or resumes an upload, also the Server's answer to it
+	 */
+	public static final String UPLOAD = "/upload";
+
+	/**
+	 * Starts or resumes a download
+	 */
+	public static final String DOWNLOAD = "/download";
+
+	/**
+	 * Server's answer to DOWNLOAD, before the file itself
+	 */
+	public static final String FILE = "/file";
+
+	/**
+	 * Asks for older messages of the main room, also the Server's answer after them
+	 */
+	public static final String HISTORY = "/history";
+
+	/**
+	 * The room every client is in after connecting
+	 */
+	public static final String MAIN_ROOM = "main";
+
+	/**
+	 * Creates the first line of a syncing client
+	 * @param lastSeen Sequence number of the newest message the client has, -1 if none
+	 * @return The line to send
+	 */
+	public static String sync(long lastSeen) {
+		return SYNC+" "+lastSeen;
+	}
+
+	/**
+	 * Creates the first line of a syncing client
+	 * @param lastSeen Sequence number of the newest message the client has, -1 if none
+	 * @param binary true to ask for the binary format
+	 * @return The line to send
+	 */
+	public static String sync(long lastSeen, boolean binary) {
+		return binary ? sync(lastSeen)+" binary" : sync(lastSeen);
+	}
+
+	/**
+	 * Creates the first line of a syncing client
+	 * @param lastSeen Sequence number of the newest message the client has, -1 if none
+	 * @param binary true to ask for the binary format
+	 * @param most The most messages to replay, -1 for as many as the Server sends
+	 * @return The line to send
+	 */
+	public static String sync(long lastSeen, boolean binary, long most) {
+		return most < 0 ? sync(lastSeen, binary) : sync(lastSeen, binary)+" "+most;
+	}
+
+	public static boolean isPong(String line) {
+		return line.equals(PONG);
+	}
+
+	/**
+	 * Tells if a line is a "/sync" command
+	 * @param line A line received by the Server
+	 * @return true if the line is "/sync" followed by a number, optionally "binary" and
+	 * optionally the most messages to replay
+	 */
+	public static boolean isSync(String line) {
+		String[] words = line.trim().split(" ");
+		if(words.length < 2 || !words[0].equals(SYNC) || parseNumber(words[1]) == null)
+			return false;
+		int i = 2;
+		if(i < words.length && words[i].equals("binary"))
+			i++;
+		if(i < words.length && count(words[i]) >= 0)
+			i++;
+		return i == words.length;
+	}
+
+	/**
+	 * Reads the sequence number out of a "/sync" command
+	 * @param line A line for which isSync() is true
+	 * @return The last seen sequence number
+	 */
+	public static long lastSeen(String line) {
+		return parseNumber(line.trim().split(" ")[1]);
+	}
+
+	/**
+	 * Tells if a "/sync" command asks for the binary format
+	 * @param line A line for which isSync() is true
+	 * @return true for "/sync <last seen> binary"
+	 */
+	public static boolean wantsBinary(String line) {
+		String[] words = line.trim().split(" ");
+		return words.length > 2 && words[2].equals("binary");
+	}
+
+	/**
+	 * Reads the most messages to replay out of a "/sync" command
+	 * @param line A line for which isSync() is true
+	 * @return The number, or -1 if the client didn't limit it
+	 */
+	public static long mostOf(String line) {
+		String[] words = line.trim().split(" ");
+		String last = words[words.length-1];
+		return words.length > 2 && !last.equals("binary") ? count(last) : -1;
+	}
+
+	/**
+	 * Creates "/history <before> <count>", also used for the answer "/history <from> <to>"
+	 */
+	public static String history(long before, long count) {
+		return HISTORY+" "+before+" "+count;
+	}
+
+	/**
+	 * Prefixes a stored message with its sequence number
+	 * @param seq Sequence number of the message
+	 * @param line The message as a line of text
+	 * @return The tagged line
+	 */
+	public static String tag(long seq, String line) {
+		return "#"+seq+" "+line;
+	}
+
+	/**
+	 * Reads the sequence number of a tagged line
+	 * @param line A line received by a client
+	 * @return The sequence number or -1 if the line isn't tagged
+	 */
+	public static long seqOf(String line) {
+		int space = line.indexOf(' ');
+		if(!line.startsWith("#") || space < 0)
+			return -1;
+		Long seq = parseNumber(line.substring(1, space));
+		return seq == null ? -1 : seq;
+	}
+
+	/**
+	 * Removes the "#<seq> " prefix of a tagged line
+	 * @param line A line for which seqOf() isn't -1
+	 * @return The message without its sequence number
+	 */
+	public static String untag(String line) {
+		return line.substring(line.indexOf(' ')+1);
+	}
+
+	/**
+	 * The line sent before a replay that leaves out some messages
+	 * @param format TEXT, TAGGED or BINARY
+	 * @param skipped Number of messages left out
+	 * @return The line
+	 */
+	public static String truncated(int format, long skipped) {
+		if(format == TEXT)
+			return "["+skipped+" older messages not shown]";
+		return TRUNCATED+" "+skipped;
+	}
+
+	/**
+	 * Tells if a room name is allowed: 1 to 32 letters, digits, '-' or '_'
+	 * @param name The name
+	 * @return true if it can be a room's name
+	 */
+	public static boolean isRoomName(String name) {
+		if(name.isEmpty() || name.length() > 32)
+			return false;
+		for(int i = 0; i < name.length(); i++){
+			char c = name.charAt(i);
+			if(!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9') && c != '-' && c != '_')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the room name out of "/join <room>" or "/leave <room>"
+	 * @param command Name of the command, JOIN or LEAVE
+	 * @param text Text of a message
+	 * @return The room name (not checked), or null if the text isn't that command
+	 */
+	public static String roomOf(String command, String text) {
+		if(!text.startsWith(command+" "))
+			return null;
+		return text.substring(command.length()+1).trim();
+	}
+
+	/**
+	 * Reads the words out of "/search <words>"
+	 * @param text Text of a message
+	 * @return The words, or null if the text isn't that command
+	 */
+	public static String queryOf(String text) {
+		return roomOf(SEARCH, text);
+	}
+
+	/**
+	 * Tells if a nickname can be claimed: up to 32 characters, none of them a space or ':',
+	 * and not starting like a command or a room
+	 * @param name The nickname
+	 * @return true if it's valid
+	 */
+	public static boolean isNickname(String name) {
+		if(name.isEmpty() || name.length() > 32 || "/[(#".indexOf(name.charAt(0)) >= 0)
+			return false;
+		for(int i = 0; i < name.length(); i++){
+			char c = name.charAt(i);
+			if(Character.isWhitespace(c) || c == ':')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the nickname out of "/nick <nickname>"
+	 * @param text Text of a message
+	 * @return The nickname, or null if the text isn't that command
+	 */
+	public static String nicknameOf(String text) {
+		return roomOf(NICK, text);
+	}
+
+	/**
+	 * Creates "/nick <nickname>"
+	 */
+	public static String nick(String nickname) {
+		return NICK+" "+nickname;
+	}
+
+	/**
+	 * Splits "/dm <nickname> <text>"
+	 * @param text Text of a message
+	 * @return The nickname and the text, or null if the text isn't that command
+	 */
+	public static String[] directOf(String text) {
+		String rest = roomOf(DM, text);
+		if(rest == null)
+			return null;
+		int space = rest.indexOf(' ');
+		if(space <= 0)
+			return null;
+		return new String[] { rest.substring(0, space), rest.substring(space+1).trim() };
+	}
+
+	/**
+	 * Tells if a file can be uploaded under a name: up to 64 letters, digits, '.', '-'
+	 * and '_', not starting with '.'
+	 * @param name The name
+	 * @return true if it's valid
+	 */
+	public static boolean isFileName(String name) {
+		if(name.isEmpty() || name.length() > 64 || name.charAt(0) == '.')
+			return false;
+		for(int i = 0; i < name.length(); i++){
+			char c = name.charAt(i);
+			if(!Character.isLetterOrDigit(c) && c != '.' && c != '-' && c != '_')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Splits a command with words after it, e.g. "/upload <name> <size>"
+	 * @param command The command
+	 * @param text Text of a message
+	 * @return The words, or null if the text isn't that command
+	 */
+	public static String[] argsOf(String command, String text) {
+		String rest = roomOf(command, text);
+		if(rest == null)
+			return null;
+		return rest.split(" +");
+	}
+
+	/**
+	 * Reads a number that is not negative, e.g. an argument of a command
+	 * @param s The text
+	 * @return The number, or -1 if it isn't one
+	 */
+	public static long count(String s) {
+		Long n = parseNumber(s);
+		return n == null || n < 0 ? -1 : n;
+	}
+
+	private static Long parseNumber(String s) {
+		try {
+			return Long.parseLong(s.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+}//class Protocol
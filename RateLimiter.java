@@ -0,0 +1,146 @@
+/**
+ * Limits on how much clients may send, in messages and in bytes per second, applied to
+ * every message before it's stamped and broadcast. Every client has its own limits and
+ * all clients together share the global ones. Each limit is a TokenBucket, so checking
+ * them takes no lock.
+ *
+ * There are no limits unless they are set. What happens to a message over a limit is
+ * set by ServerConfig.rateLimitAction:
+ * "drop" - the message is thrown away and the client gets DROPPED,
+ * "delay" - the message waits until it fits and the client isn't read from meanwhile,
+ * "disconnect" - the client is disconnected. Over the global limit the message is only
+ * dropped, as the client isn't necessarily the one to blame.
+ * Throttled messages and their bytes are counted in Metrics.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class RateLimiter {
+
+	/**
+	 * Results of admit() other than a delay
+	 */
+	public static final long PASS = 0;
+	public static final long DROP = -1;
+	public static final long DISCONNECT = -2;
+
+	/**
+	 * What a client whose message has been dropped gets
+	 */
+	public static final String DROPPED = "Slow down, your message was not sent.";
+
+	/**
+	 * Limits of all clients together, null if there are none
+	 */
+	private static RateLimiter global;
+
+	/**
+	 * Messages and bytes, either may be null if it's not limited
+	 */
+	private final TokenBucket messages;
+	private final TokenBucket bytes;
+
+	private RateLimiter(TokenBucket messages, TokenBucket bytes) {
+		this.messages = messages;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Sets up the global limits configured by ServerConfig
+	 */
+	public static void start() {
+		global = create(ServerConfig.globalMessagesPerSecond, ServerConfig.globalBytesPerSecond);
+	}
+
+	/**
+	 * Creates the limits of a new client configured by ServerConfig
+	 * @return The limits, null if the clients aren't limited one by one
+	 */
+	public static RateLimiter forClient() {
+		return create(ServerConfig.clientMessagesPerSecond, ServerConfig.clientBytesPerSecond);
+	}
+
+	private static RateLimiter create(double messagesPerSecond, double bytesPerSecond) {
+		if(messagesPerSecond <= 0 && bytesPerSecond <= 0)
+			return null;
+		double burst = ServerConfig.rateBurstSeconds;
+		return new RateLimiter(
+				messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messagesPerSecond * burst) : null,
+				bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond * burst) : null);
+	}
+
+	/**
+	 * Checks a message of a client against its limits and the global ones
+	 * @param client Limits of the client, may be null
+	 * @param size Size of the message in bytes
+	 * @return PASS, DROP, DISCONNECT or, with the "delay" action, how many nanoseconds
+	 * to wait before handling the message
+	 */
+	public static long admit(RateLimiter client, int size) {
+		RateLimiter all = global;
+		if(client == null && all == null)
+			return PASS;
+		String action = ServerConfig.rateLimitAction;
+		if(action.equals("delay")){
+			long wait = 0;
+			if(client != null)
+				wait = client.take(size);
+			if(all != null)
+				wait = Math.max(wait, all.take(size));
+			if(wait > 0)
+				throttled(size);
+			return wait;
+		}
+		if(client != null && !client.tryTake(size)){
+			throttled(size);
+			return action.equals("disconnect") ? DISCONNECT : DROP;
+		}
+		if(all != null && !all.tryTake(size)){
+			if(client != null)
+				client.giveBack(size);
+			throttled(size);
+			return DROP;
+		}
+		return PASS;
+	}
+
+	private static void throttled(int size) {
+		Metrics.throttled.increment();
+		Metrics.throttledBytes.add(size);
+	}
+
+	/**
+	 * Takes a message from both buckets if both have enough
+	 */
+	private boolean tryTake(int size) {
+		if(messages != null && messages.tryTake(1) > 0)
+			return false;
+		if(bytes != null && bytes.tryTake(size) > 0){
+			if(messages != null)
+				messages.giveBack(1);
+			return false;
+		}
+		return true;
+	}
+
+	private void giveBack(int size) {
+		if(messages != null)
+			messages.giveBack(1);
+		if(bytes != null)
+			bytes.giveBack(size);
+	}
+
+	/**
+	 * Takes a message from both buckets, borrowing if needed
+	 * @return How long to wait until it's paid off
+	 */
+	private long take(int size) {
+		long wait = 0;
+		if(messages != null)
+			wait = messages.take(1);
+		if(bytes != null)
+			wait = Math.max(wait, bytes.take(size));
+		return wait;
+	}
+
+}//class RateLimiter
@@ -0,0 +1,221 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named room: its own history, numbered from 0 like the main one, and the clients
+ * subscribed to it. A message sent to the room is queued only for its members, so
+ * it costs as much as the room is big, not as the whole Server.
+ *
+ * Members are kept by connection id (see ConnectionRegistry), so a broadcast may
+ * iterate them while others join or leave. A member whose queue has been closed is
+ * dropped the next time the room sends something.
+ *
+ * Storing a message and queueing it for the members happen under the lock of the
+ * room's history, like for the main room, so every member gets the messages in the
+ * order of their numbers. With a MessageLog a message is queued only once it's on
+ * disk; until then it's stored but not released, and clients that start getting the
+ * room's messages meanwhile are replayed only the released ones, see getReleased().
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Room {
+
+	private final String name;
+	private final MessageHistory history;
+	private final ConcurrentHashMap<Integer, OutboundQueue> members = new ConcurrentHashMap<Integer, OutboundQueue>();
+
+	/**
+	 * Messages stored but waiting for the log before they are queued for the members.
+	 * Guarded by the lock of the history.
+	 */
+	private int unreleased = 0;
+
+	/**
+	 * Creates an empty room
+	 * @param name Name of the room, see Protocol.isRoomName()
+	 * @param history History of the room
+	 */
+	public Room(String name, MessageHistory history) {
+		this.name = name;
+		this.history = history;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public MessageHistory getHistory() {
+		return history;
+	}
+
+	public boolean isMain() {
+		return name.equals(Protocol.MAIN_ROOM);
+	}
+
+	/**
+	 * The room as named in its messages: null for the main room, the name otherwise
+	 */
+	public String getMessageRoom() {
+		return isMain() ? null : name;
+	}
+
+	/**
+	 * Number after the last message queued for the members. Newer ones are stored but
+	 * wait for the log, and are queued for whoever is a member when they are released.
+	 * Called with the lock of the history held.
+	 */
+	public long getReleased() {
+		return history.size() - unreleased;
+	}
+
+	/**
+	 * Makes a client a member without replaying anything, e.g. a client that has just
+	 * connected and gets the main room's history by other means
+	 * @param id Connection id of the client
+	 * @param queue Outbound queue of the client
+	 */
+	public void subscribe(int id, OutboundQueue queue) {
+		members.put(id, queue);
+	}
+
+	/**
+	 * Makes a client a member and queues the newest messages of the room for it, up to
+	 * ServerConfig.syncMax of them, followed by everything sent to the room later
+	 * @param id Connection id of the client
+	 * @param queue Outbound queue of the client
+	 * @return false if the client was already a member
+	 */
+	public boolean join(int id, OutboundQueue queue) {
+		synchronized(history){
+			if(members.containsKey(id))
+				return false;
+			long to = getReleased();
+			queue.offer(Outgoing.replay(this, Server.replayStart(0, to), to));
+			members.put(id, queue);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes a client from the members
+	 * @param id Connection id of the client
+	 * @return false if the client wasn't a member
+	 */
+	public boolean leave(int id) {
+		return members.remove(id) != null;
+	}
+
+	public boolean isMember(int id) {
+		return members.containsKey(id);
+	}
+
+	/**
+	 * Number of the members
+	 */
+	public int size() {
+		return members.size();
+	}
+
+	/**
+	 * Stores a message in the history of the room. Called with the lock of the history held.
+	 * @param msg The message
+	 * @return The message in this room, with its number
+	 */
+	private Message store(Message msg) {
+		msg = msg.inRoom(getMessageRoom());
+		long seq = history.append(msg);
+		return msg.withSeq(seq);
+	}
+
+	/**
+	 * Stores a message and queues it for every member. In a cluster, a message for a room
+	 * owned by another node is only forwarded to that node; it comes back numbered and
+	 * is stored by apply().
+	 * @param msg The message
+	 * @return The stored message with its number, or the forwarded one without it
+	 */
+	public Message post(Message msg) {
+		Cluster cluster = Server.cluster;
+		if(cluster != null && !cluster.isOwner(getMessageRoom())){
+			msg = msg.inRoom(getMessageRoom());
+			cluster.forward(msg);
+			return msg;
+		}
+		return sequence(msg);
+	}
+
+	/**
+	 * Numbers a message, stores it and logs it. Once it's on disk, it's queued for every
+	 * member and, in a cluster, relayed to the other nodes, see release(). Without a log
+	 * that happens at once.
+	 * @param msg The message
+	 * @return The stored message, with its number
+	 */
+	public Message sequence(Message msg) {
+		synchronized(history){
+			final Message stored = store(msg);
+			MessageLog log = Server.log;
+			if(log == null){
+				release(stored);
+			}
+			else{
+				unreleased++;
+				log.append(stored, new Runnable() {
+					@Override
+					public void run() {
+						synchronized(history){
+							unreleased--;
+							release(stored);
+						}
+					}
+				});
+			}
+			return stored;
+		}
+	}
+
+	/**
+	 * Queues a stored message for every member and relays it to the other nodes. Called
+	 * with the lock of the history held, in the order of the numbers.
+	 */
+	private void release(Message msg) {
+		sendToAll(msg);
+		if(Server.cluster != null)
+			Server.cluster.relay(msg);
+	}
+
+	/**
+	 * Stores a message numbered by the node that owns the room and queues it for every
+	 * member, if it's the next message of the room. Older messages are already here and
+	 * are ignored; newer ones mean that some are missing.
+	 * @param msg The message, with its number
+	 * @return true if it has been stored
+	 */
+	public boolean apply(Message msg) {
+		synchronized(history){
+			if(msg.getSeq() != history.size())
+				return false;
+			msg = store(msg);
+			if(Server.log != null)
+				Server.log.append(msg);
+			sendToAll(msg);
+			return true;
+		}
+	}
+
+	/**
+	 * Queues a stored message for every member. Called with the lock of the history held.
+	 * @param msg The message, with its number
+	 */
+	public void sendToAll(Message msg) {
+		long start = System.nanoTime();
+		Outgoing out = Outgoing.of(msg);
+		for(Map.Entry<Integer, OutboundQueue> member : members.entrySet()){
+			if(!member.getValue().offer(out))
+				members.remove(member.getKey(), member.getValue());
+		}
+		Metrics.since(Metrics.fanOut, start);
+	}
+
+}//class Room
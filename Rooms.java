@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All the rooms of the Server by name. The main room exists from the start and every
+ * client is subscribed to it on connect; other rooms are created by the first client
+ * that joins them ("/join <room>") and stay for as long as the Server runs.
+ *
+ * Every client has a current room, the one its messages go to: the main room at first,
+ * then the room it joined last. Clients send commands as ordinary messages, so old
+ * clients can use them too. onMessage() handles both commands and messages, in the
+ * same way for all server modes.
+ *
+ * Nicknames claimed with "/nick" are kept in Server.connections. A message signed with
+ * a nickname that another client has claimed is refused, and direct messages ("/dm")
+ * go straight to the one queue of their recipient, bypassing the rooms and the history.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Rooms {
+
+	private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+	private final Room main;
+
+	/**
+	 * Creates the main room, with its history configured by ServerConfig
+	 */
+	public Rooms() {
+		main = new Room(Protocol.MAIN_ROOM, MessageHistory.fromConfig());
+		rooms.put(main.getName(), main);
+	}
+
+	public Room getMain() {
+		return main;
+	}
+
+	/**
+	 * Returns a room
+	 * @param name Name of the room, null for the main room
+	 * @return The room, or null if there is no such room
+	 */
+	public Room get(String name) {
+		return name == null ? main : rooms.get(name);
+	}
+
+	/**
+	 * Returns a room, creating it if it doesn't exist
+	 * @param name Name of the room, null for the main room
+	 * @return The room
+	 */
+	public Room getOrCreate(String name) {
+		Room room = get(name);
+		if(room == null){
+			Room created = new Room(name, MessageHistory.fromConfig(name));
+			room = rooms.putIfAbsent(name, created);
+			if(room == null)
+				room = created;
+		}
+		return room;
+	}
+
+	/**
+	 * Every room, safe to iterate while rooms are created
+	 */
+	public Collection<Room> getAll() {
+		return rooms.values();
+	}
+
+	/**
+	 * Number of the rooms, including the main one
+	 */
+	public int size() {
+		return rooms.size();
+	}
+
+	/**
+	 * Handles a message of a client: "/nick <nickname>", "/dm <nickname> <text>",
+	 * "/join <room>", "/leave <room>", "/search <words>", "/history <before> <count>", a
+	 * file transfer command (see FileStore) or a message for the client's current room.
+	 * Answers to commands go only to the client.
+	 * @param id Connection id of the client
+	 * @param queue Outbound queue of the client
+	 * @param current Current room of the client, may be null if it has left it
+	 * @param msg The message as received
+	 * @return The current room of the client after the message
+	 */
+	public Room onMessage(int id, OutboundQueue queue, Room current, Message msg) {
+		Metrics.messagesIn.increment();
+		String nickname = Protocol.nicknameOf(msg.getBody());
+		if(nickname != null){
+			if(!Protocol.isNickname(nickname))
+				queue.offer(Outgoing.line("Wrong nickname: "+nickname));
+			else if(!Server.connections.register(id, nickname))
+				queue.offer(Outgoing.line("The nickname "+nickname+" is taken."));
+			else
+				queue.offer(Outgoing.line("You are "+nickname+"."));
+			return current;
+		}
+		String sender = msg.getSender();
+		if(sender != null && !sender.isEmpty() && !Server.connections.mayUse(id, sender)){
+			queue.offer(Outgoing.line("The nickname "+sender+" is taken, your message was not sent."));
+			return current;
+		}
+
+		if(FileStore.onCommand(id, queue, msg.getBody()))
+			return current;
+
+		String[] direct = Protocol.directOf(msg.getBody());
+		if(direct != null){
+			direct(id, queue, direct[0], direct[1], msg.getTimestamp());
+			return current;
+		}
+
+		String name = Protocol.roomOf(Protocol.JOIN, msg.getBody());
+		if(name != null){
+			if(!Protocol.isRoomName(name)){
+				queue.offer(Outgoing.line("Wrong room name: "+name));
+				return current;
+			}
+			Room room = getOrCreate(name);
+			if(room.join(id, queue) && msg.getSender() != null && !msg.getSender().isEmpty())
+				room.post(Message.system(msg.getTimestamp(), msg.getSender()+" joined."));
+			queue.offer(Outgoing.line("You are in the room "+name+"."));
+			return room;
+		}
+
+		name = Protocol.roomOf(Protocol.LEAVE, msg.getBody());
+		if(name != null){
+			Room room = rooms.get(name);
+			if(room == null || !room.leave(id)){
+				queue.offer(Outgoing.line("You are not in the room "+name+"."));
+				return current;
+			}
+			if(msg.getSender() != null && !msg.getSender().isEmpty())
+				room.post(Message.system(msg.getTimestamp(), msg.getSender()+" left."));
+			queue.offer(Outgoing.line("You left the room "+name+"."));
+			if(room != current)
+				return current;
+			return main.isMember(id) ? main : null;
+		}
+
+		String query = Protocol.queryOf(msg.getBody());
+		if(query != null){
+			search(current != null ? current : main, query, queue);
+			return current;
+		}
+
+		String[] page = Protocol.argsOf(Protocol.HISTORY, msg.getBody());
+		if(page != null){
+			if(page.length != 2 || Protocol.count(page[0]) < 0 || Protocol.count(page[1]) < 0)
+				queue.offer(Outgoing.line("Type "+Protocol.HISTORY+" <before> <count>."));
+			else
+				page(Protocol.count(page[0]), Protocol.count(page[1]), queue);
+			return current;
+		}
+
+		if(current == null || !current.isMember(id)){
+			queue.offer(Outgoing.line("You are in no room, type "+Protocol.JOIN+" <room> first."));
+			return current;
+		}
+		msg = current.post(msg);
+		ServerLog.message(msg);
+		return current;
+	}
+
+	/**
+	 * Sends a message to a single client, with a copy to its author. Neither is stored.
+	 */
+	private static void direct(int id, OutboundQueue queue, String to, String text, long timestamp) {
+		String from = Server.connections.getNickname(id);
+		if(from == null){
+			queue.offer(Outgoing.line("Type "+Protocol.NICK+" <nickname> before sending direct messages."));
+			return;
+		}
+		if(!Server.connections.sendTo(to, Outgoing.line(new Message(-1, timestamp, from, text, "dm").toString()))){
+			queue.offer(Outgoing.line("No one is called "+to+"."));
+			return;
+		}
+		queue.offer(Outgoing.line(new Message(-1, timestamp, from, text, "dm to "+to).toString()));
+	}
+
+	/**
+	 * Sends a client up to count messages of the main room numbered below before, at most
+	 * ServerConfig.historyPageMax, and then "/history <from> <to>". The messages are read
+	 * by the client's writer, not here.
+	 */
+	private void page(long before, long count, OutboundQueue queue) {
+		long to;
+		synchronized(main.getHistory()){
+			to = Math.min(before, main.getReleased());
+		}
+		long from = Math.max(0, to - Math.min(count, ServerConfig.historyPageMax));
+		queue.offer(Outgoing.page(main, from, to));
+	}
+
+	/**
+	 * Sends a client the newest messages of a room that contain all the words, up to
+	 * ServerConfig.searchResults of them, newest first
+	 */
+	private static void search(Room room, String query, OutboundQueue queue) {
+		ArrayList<Message> found = new ArrayList<Message>();
+		if(!room.getHistory().search(query, ServerConfig.searchResults, found)){
+			queue.offer(Outgoing.line("Search is switched off."));
+			return;
+		}
+		queue.offer(Outgoing.line("Found "+found.size()+" messages with \""+query+"\" in the room "+room.getName()+":"));
+		for(int i = 0; i < found.size(); i++){
+			queue.offer(Outgoing.line(found.get(i).toString()));
+		}
+	}
+
+}//class Rooms
@@ -0,0 +1,311 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Inverted index of a MessageHistory: for every word, the numbers of the messages that
+ * contain it. Kept up to date by MessageHistory.append(), so it covers recovered
+ * messages as well as new ones.
+ *
+ * A posting list is a byte array of the differences between consecutive numbers, each
+ * written in as few 7-bit groups as it needs, so a word that appears in most messages
+ * costs about a byte per message. Every BLOCK numbers a new block starts with the full
+ * number, which is also kept in a small array. That lets a search decode a single block
+ * to check whether a message contains a word, instead of the whole list.
+ *
+ * A search takes the rarest of the words, walks its list from the newest message back
+ * and checks each message against the lists of the other words, until it has enough.
+ * So the newest matches come first and only as much of the lists is decoded as needed.
+ *
+ * The index is added to under the lock of the room's history, so a search must not hold
+ * the index's lock for long. Posting lists only grow, and a grown array is a new copy,
+ * so a search takes a Snapshot of the lists of its words under the lock and walks them
+ * without it, while new messages go on being indexed.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class SearchIndex {
+
+	/**
+	 * Numbers per block of a posting list
+	 */
+	private static final int BLOCK = 128;
+
+	/**
+	 * Words shorter than this aren't indexed, longer ones are cut to MAX_WORD
+	 */
+	private static final int MIN_WORD = 2;
+	private static final int MAX_WORD = 32;
+
+	private final HashMap<String, Postings> words = new HashMap<String, Postings>();
+	private long postings = 0;
+
+	/**
+	 * Numbers of the messages containing a single word
+	 */
+	private static class Postings {
+		byte[] data = new byte[8];
+		int length = 0;
+		int count = 0;
+		long last = -1;
+
+		/**
+		 * First number of every block and where the block starts in data
+		 */
+		long[] blockFirst = new long[1];
+		int[] blockOffset = new int[1];
+
+		/**
+		 * Adds a number greater than all the numbers in the list
+		 */
+		void add(long seq) {
+			if(count % BLOCK == 0){
+				int block = count / BLOCK;
+				if(block == blockFirst.length){
+					blockFirst = Arrays.copyOf(blockFirst, block * 2);
+					blockOffset = Arrays.copyOf(blockOffset, block * 2);
+				}
+				blockFirst[block] = seq;
+				blockOffset[block] = length;
+			}
+			else{
+				long delta = seq - last;
+				while(delta >= 0x80){
+					put((byte) (delta | 0x80));
+					delta >>>= 7;
+				}
+				put((byte) delta);
+			}
+			last = seq;
+			count++;
+		}
+
+		private void put(byte b) {
+			if(length == data.length)
+				data = Arrays.copyOf(data, length + (length >> 1) + 8);
+			data[length++] = b;
+		}
+
+		/**
+		 * The list as it is now. Called with the index locked.
+		 */
+		Snapshot snapshot() {
+			return new Snapshot(data, count, blockFirst, blockOffset);
+		}
+	}//class Postings
+
+	/**
+	 * A posting list up to the number it had when the Snapshot was taken. The parts of
+	 * the arrays it reads are never written again, so it needs no lock.
+	 */
+	private static class Snapshot {
+		final byte[] data;
+		final int count;
+		final long[] blockFirst;
+		final int[] blockOffset;
+
+		Snapshot(byte[] data, int count, long[] blockFirst, int[] blockOffset) {
+			this.data = data;
+			this.count = count;
+			this.blockFirst = blockFirst;
+			this.blockOffset = blockOffset;
+		}
+
+		int blocks() {
+			return (count + BLOCK - 1) / BLOCK;
+		}
+
+		/**
+		 * Decodes a block
+		 * @param block Number of the block
+		 * @param out At least BLOCK long, gets the numbers in ascending order
+		 * @return How many numbers the block has
+		 */
+		int decode(int block, long[] out) {
+			int n = Math.min(BLOCK, count - block * BLOCK);
+			int at = blockOffset[block];
+			long seq = blockFirst[block];
+			out[0] = seq;
+			for(int i = 1; i < n; i++){
+				long delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data[at++];
+					delta |= (long) (b & 0x7f) << shift;
+					shift += 7;
+				} while(b < 0);
+				seq += delta;
+				out[i] = seq;
+			}
+			return n;
+		}
+
+		/**
+		 * The block that would hold a number, -1 if it's lower than every number
+		 */
+		int blockOf(long seq) {
+			int low = 0;
+			int high = blocks() - 1;
+			if(high < 0 || seq < blockFirst[0])
+				return -1;
+			while(low < high){
+				int mid = (low + high + 1) >>> 1;
+				if(blockFirst[mid] <= seq)
+					low = mid;
+				else
+					high = mid - 1;
+			}
+			return low;
+		}
+	}//class Snapshot
+
+	/**
+	 * Checks numbers against a posting list, keeping the last decoded block. Meant to be
+	 * asked about falling numbers, which mostly fall into the same block.
+	 */
+	private static class Cursor {
+		final Snapshot postings;
+		final long[] decoded = new long[BLOCK];
+		int block = -1;
+		int size = 0;
+
+		Cursor(Snapshot postings) {
+			this.postings = postings;
+		}
+
+		boolean contains(long seq) {
+			int b = postings.blockOf(seq);
+			if(b < 0)
+				return false;
+			if(b != block){
+				size = postings.decode(b, decoded);
+				block = b;
+			}
+			return Arrays.binarySearch(decoded, 0, size, seq) >= 0;
+		}
+	}//class Cursor
+
+	/**
+	 * Indexes a message
+	 * @param seq Number of the message, greater than of any message indexed before
+	 * @param msg The message. Its text and its author are indexed, messages of the
+	 * Server are not.
+	 */
+	public synchronized void add(long seq, Message msg) {
+		if(msg.isSystem())
+			return;
+		ArrayList<String> tokens = tokens(msg.getSender()+" "+msg.getBody());
+		for(int i = 0; i < tokens.size(); i++){
+			Postings list = words.get(tokens.get(i));
+			if(list == null){
+				list = new Postings();
+				words.put(tokens.get(i), list);
+			}
+			// a word repeated in the message is indexed once
+			if(list.last != seq){
+				list.add(seq);
+				postings++;
+			}
+		}
+	}
+
+	/**
+	 * Finds the messages that contain all the words of a query. The index is locked only
+	 * while the posting lists of the words are looked up.
+	 * @param query Words separated by anything but letters and digits, case doesn't matter
+	 * @param limit The most numbers to return
+	 * @return Numbers of the matching messages, newest first
+	 */
+	public long[] search(String query, int limit) {
+		ArrayList<String> tokens = tokens(query);
+		if(tokens.isEmpty())
+			return new long[0];
+		Snapshot[] lists = new Snapshot[tokens.size()];
+		synchronized(this){
+			for(int i = 0; i < lists.length; i++){
+				Postings list = words.get(tokens.get(i));
+				if(list == null)
+					return new long[0];
+				lists[i] = list.snapshot();
+			}
+		}
+		Arrays.sort(lists, new Comparator<Snapshot>() {
+			@Override
+			public int compare(Snapshot a, Snapshot b) {
+				return Integer.compare(a.count, b.count);
+			}
+		});
+		Cursor[] others = new Cursor[lists.length - 1];
+		for(int i = 1; i < lists.length; i++){
+			others[i-1] = new Cursor(lists[i]);
+		}
+
+		long[] found = new long[Math.min(limit, lists[0].count)];
+		int n = 0;
+		long[] block = new long[BLOCK];
+		for(int b = lists[0].blocks() - 1; b >= 0 && n < found.length; b--){
+			int size = lists[0].decode(b, block);
+			for(int i = size - 1; i >= 0 && n < found.length; i--){
+				boolean all = true;
+				for(int j = 0; j < others.length && all; j++){
+					all = others[j].contains(block[i]);
+				}
+				if(all)
+					found[n++] = block[i];
+			}
+		}
+		return Arrays.copyOf(found, n);
+	}
+
+	/**
+	 * Number of different words indexed
+	 */
+	public synchronized int getWords() {
+		return words.size();
+	}
+
+	/**
+	 * Number of (word, message) pairs indexed
+	 */
+	public synchronized long getPostings() {
+		return postings;
+	}
+
+	/**
+	 * Bytes taken by the posting lists, without the words themselves
+	 */
+	public synchronized long getBytes() {
+		long bytes = 0;
+		for(Postings list : words.values()){
+			bytes += list.data.length + list.blockFirst.length * 8L + list.blockOffset.length * 4L;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Cuts a text into lower case words of letters and digits
+	 * @param text The text
+	 * @return The words, repeated ones included
+	 */
+	public static ArrayList<String> tokens(String text) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		for(int i = 0; i <= text.length(); i++){
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if(Character.isLetterOrDigit(c)){
+				if(word.length() < MAX_WORD)
+					word.append(Character.toLowerCase(c));
+			}
+			else if(word.length() > 0){
+				if(word.length() >= MIN_WORD)
+					tokens.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return tokens;
+	}
+
+}//class SearchIndex
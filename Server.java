@@ -1,6 +1,7 @@
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -15,10 +16,9 @@ import java.util.*;
 public class Server implements Runnable {
 	
 	/**
-	 * Port that clients connect to
+	 * Accepts clients in the threads and virtual modes, see ServerConfig.transport
 	 */
-	private static final int port = 9999;
-	private static ServerSocket serverSocket;
+	private static Transport.Listener listener;
 	
 	/**
 	 * Number specifies what a Server object is responsible for. See the Server constructor 
@@ -27,45 +27,114 @@ public class Server implements Runnable {
 	private int number;
 	
 	/**
-	 * Every client connected to the Server is represented by an element
-	 * in the array of sockets.
+	 * The client handled by this Server object and the writer that sends it messages.
+	 * Null for the Server object waiting for clients.
 	 */
-	public static ArrayList<Socket> sockets = new ArrayList<Socket>();
+	private Transport.Connection connection;
+	private ClientWriter writer;
 	
 	/**
-	 * Every message sent from any client is stored in this array in order to send those 
-	 * 'old' messages immediately to a just-connected client.
+	 * The room messages of the client go to, see Rooms
 	 */
-	public static ArrayList<String> messages = new ArrayList<String>();	
+	private Room room;
 	
 	/**
-	 * The threads[0] is responsible for waiting for clients and adding new threads (with
-	 * indices greater than 0) to this array. These non-zero threads receive and send
-	 * messages, so that the threads[1] thread handles connection with the client in the
-	 * sockets[0] socket, threads[2] corresponds to sockets[1] and so on. 
-	 *  See the Server constructor description for more info.
+	 * Heartbeat of the client, null if it has none
 	 */
-	public static ArrayList<Thread> threads = new ArrayList<Thread>();
+	private Heartbeat heartbeat;
+	
+	/**
+	 * Rate limits of the client, null if it has none
+	 */
+	private RateLimiter limiter;
+	
+	/**
+	 * Every client connected to the Server, in all modes, by its connection id.
+	 * Messages are put into the queues kept there, so broadcasting never waits for
+	 * a slow client.
+	 */
+	public static ConnectionRegistry connections = new ConnectionRegistry();
+	
+	/**
+	 * The main room, which every client is in after connecting, and the rooms clients
+	 * have joined since. Created in main() once the options are known.
+	 */
+	public static Rooms rooms;
+	
+	/**
+	 * Every message sent from any client to the main room is stored here in order to
+	 * send those 'old' messages immediately to a just-connected client. Recent messages
+	 * are kept in memory, older ones on disk. It's the history of rooms.getMain().
+	 */
+	public static MessageHistory history;
+	
+	/**
+	 * Every stored message is also written to this log, which is replayed into the
+	 * history when the Server starts. Null if the log is switched off.
+	 */
+	public static MessageLog log;
+	
+	/**
+	 * The other Servers this one works with, null if it works alone. See Cluster.
+	 */
+	public static Cluster cluster;
+	
+	/**
+	 * Turns the heartbeats of the clients, null if they are switched off. See Heartbeat.
+	 */
+	public static TimingWheel wheel;
 	
 	/**
 	 * Program waits until the first client requests a connection.
-	 * After that, thread[0] is started which waits for the second and further clients. 
-	 * Threads[1] handles connection with the client represented by sockets[0].
-	 * @param args
+	 * After that, a thread is started which waits for the second and further clients,
+	 * and another one which handles connection with the first client.
+	 * With --mode=virtual handlers run on virtual threads. With --mode=nio all of that
+	 * is replaced by the selector threads of ServerReactor.
+	 * @param args Startup options, see ServerConfig
 	 */
 	public static void main(String[] args) {
+		ServerConfig.parse(args);
+		rooms = new Rooms();
+		history = rooms.getMain().getHistory();
+		Metrics.start();
+		RateLimiter.start();
+		if(ServerConfig.heartbeatMillis > 0){
+			wheel = new TimingWheel(100, 1024);
+			wheel.start();
+		}
+		try {
+			log = MessageLog.open(rooms);
+			cluster = Cluster.fromConfig(rooms);
+			if(cluster != null)
+				cluster.start();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if(ServerConfig.mode.equals("nio")){
+			if(!ServerConfig.transport.equals("tcp")){
+				System.out.println("The nio mode works over TCP only");
+				return;
+			}
+			try {
+				new ServerReactor(ServerConfig.port, ServerConfig.selectors).run();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
 		Server server0 = new Server(0);
 		
+		Server first = null;
 		try {
-			server0.waitForClient();
+			first = server0.waitForClient();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		threads.add(new Thread(server0));
-		threads.add(new Thread(new Server(1)));
-
-		threads.get(0).start();
-		threads.get(1).start();
+		new Thread(server0).start();
+		if(first != null)
+			startHandler(first);
 
 	}//main()
 	
@@ -79,125 +148,368 @@ public class Server implements Runnable {
 	 * detects a new client connection, it adds corresponding thread to handle this client.
 	 * Things described above happen in the overridden run() method.
 	 * 
-	 * @param newNumber Identification number which says what an object is responsible for
+	 * @param newNumber Identification number which says what an object is responsible for,
+	 * the connection id of the client for the objects handling messages
 	 */
 	public Server(int newNumber) {
 		this.number = newNumber;
 		if(number == 0){
 			System.out.println("Waiting for clients...");
 			try {
-				serverSocket = new ServerSocket(port);
+				listener = Transport.named(ServerConfig.transport).listen(ServerConfig.port);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
 	}
 
+	/**
+	 * Constructs a Server object handling messages of a single client
+	 * @param id Connection id of the client
+	 * @param connection Connection of the client
+	 * @param writer Writer sending messages to the client
+	 */
+	public Server(int id, Transport.Connection connection, ClientWriter writer) {
+		this(id);
+		this.connection = connection;
+		this.writer = writer;
+		this.room = rooms.getMain();
+		this.limiter = RateLimiter.forClient();
+	}
 	
 	@Override
 	public void run() {	
 		try {
 			if(number == 0){
 				while(true){
-					this.waitForClient();
-					threads.add(new Thread(new Server(threads.size())));
-					threads.get(threads.size()-1).start();
+					Server handler = this.waitForClient();
+					if(handler != null)
+						startHandler(handler);
 				}
 			}
 			else if(number > 0){
-				this.handleMessages(number-1);	
+				this.handleMessages();	
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
-	public void waitForClient() {	
+	/**
+	 * Starts a thread handling messages of a single client. In the "threads" mode it's
+	 * a platform thread, in the "virtual" mode a virtual thread. Neither is stored
+	 * anywhere; the thread ends when the client disconnects.
+	 * @param handler Server object with a number greater than zero
+	 */
+	private static void startHandler(Server handler) {
+		if(ServerConfig.mode.equals("virtual")){
+			VirtualThreads.start(handler);
+		}
+		else{
+			new Thread(handler).start();
+		}
+	}
+	
+	/**
+	 * Waits for a client, registers it and tells everyone about it
+	 * @return Server object that will handle messages of the client, null if accepting
+	 * failed
+	 */
+	public Server waitForClient() {	
 		try {
-			Socket tmp = serverSocket.accept();
-			System.out.println("Client conected");
-			sockets.add(tmp);
-			String message = "Client no "+sockets.size()+" connected.";
-			sendAllMessagesToNewbie(sockets.size()-1);
-			messages.add(message);
-			sendToAll(message);
+			Transport.Connection tmp = listener.accept();
+			long accepted = System.nanoTime();
+			ServerLog.connection("Client conected");
+			ClientWriter newWriter = new ClientWriter(tmp);
+			synchronized(history){
+				int id = connections.add(newWriter.getQueue());
+				newWriter.setId(id);
+				rooms.getMain().subscribe(id, newWriter.getQueue());
+				String message = connectedMessage(id);
+				sendAllMessagesToNewbie(newWriter);
+				rooms.getMain().post(Message.system(System.currentTimeMillis(), message));
+			}
+			Metrics.since(Metrics.accept, accepted);
+			return new Server(newWriter.getId(), tmp, newWriter);
 			
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		return null;
 	}//waitForClients
 	
 	
 	/**
-	 * Handles messages traffic from the client represented by sockets[i]. Receives a single
-	 * message, adds current time and then sends it to all connected clients.
-	 * @param i Index of a socket in the sockets[] array.
+	 * Handles messages traffic from the client of this Server object. Receives a single
+	 * message, adds current time and then sends it to all connected clients. The same
+	 * reader is used for the whole connection and reading blocks until a line arrives,
+	 * so an idle client costs no CPU. Returns when the client disconnects.
+	 * The client's writer is started once it's known whether the client syncs its
+	 * history, see readHello(). Closing the client's queue at the end also removes
+	 * it from the connections.
 	 */
-	public void handleMessages(int i)  {
+	public void handleMessages()  {
 		String line;
-		String tempMessage;
-		Scanner input = null;
-		while(true) {		
-			try {
-				input = new Scanner(sockets.get(i).getInputStream());
-			} catch (IOException e) {
-				e.printStackTrace();
+		try {
+			InputStream raw = new CountingInputStream(connection.getInputStream());
+			byte[] first = readHello(connection, raw);
+			String hello = new String(first, StandardCharsets.UTF_8).trim();
+			if(first.length > 0 && first[first.length-1] == '\n' && Protocol.isSync(hello)){
+				writer.sync(Protocol.lastSeen(hello), Protocol.wantsBinary(hello), Protocol.mostOf(hello));
+				heartbeat = Heartbeat.start(writer.getId(), writer.getQueue());
+				first = new byte[0];
 			}
-			if(input.hasNext()){
-				line = input.nextLine();
-				tempMessage = "("+getTime()+") "+line;
-				try {
-					this.sendToAll(tempMessage);
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-				messages.add(tempMessage);
-				System.out.println(messages.get(messages.size()-1));
-			}//if
-	
-		}//while(true)
+			writer.start();
+			InputStream rest = raw;
+			if(first.length > 0)
+				rest = new SequenceInputStream(new ByteArrayInputStream(first), raw);
+			
+			if(writer.getFormat() == Protocol.BINARY){
+				readFrames(rest);
+			}
+			else{
+				BufferedReader input = new BufferedReader(new InputStreamReader(rest));
+				while((line = input.readLine()) != null) {
+					handleLine(line, utf8Length(line)+1);
+				}//while
+			}
+		} catch (IOException e) {
+			// connection reset by the client
+		} finally {
+			writer.getQueue().close();
+		}
 	}//handleMessages()
 	
 	/**
-	 * Sends a single message to all connected clients
-	 * @param msg A message to send
+	 * Waits up to ServerConfig.helloTimeoutMillis for the first line of a new client.
+	 * The line is read byte by byte, because what follows it may be binary.
+	 * @return The first line with its '\n', or whatever arrived before the timeout
 	 */
-	public void sendToAll(String msg)  {
-		PrintStream output = null;
-		for(int i = 0; i < sockets.size(); i++) {
-			try {
-				output = new PrintStream(sockets.get(i).getOutputStream());
-			} catch (IOException e) {
-				e.printStackTrace();
+	private byte[] readHello(Transport.Connection connection, InputStream raw) throws IOException {
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		connection.setReadTimeout(ServerConfig.helloTimeoutMillis);
+		try {
+			int b;
+			while(first.size() < ServerConfig.maxLineBytes && (b = raw.read()) >= 0){
+				first.write(b);
+				if(b == '\n')
+					break;
 			}
-			output.println(msg);
+		} catch (SocketTimeoutException e) {
+			// an old client, it doesn't say anything before the user does
+		} finally {
+			connection.setReadTimeout(0);
 		}
+		return first.toByteArray();
 	}
 	
 	/**
-	 * Sends all messages stored in the messages[] array to a newly connected client
-	 * @param newbieIndex Index of a newly connected client
+	 * Handles traffic of a client that uses the binary format. A frame starts with
+	 * a 0 byte (the highest byte of its length), anything else is a line the client
+	 * sent before it got the Server's answer.
+	 * @param in Stream of the client after the hello line
 	 */
-	public void sendAllMessagesToNewbie(int newbieIndex) {
-		PrintStream tempOutput = null;
+	private void readFrames(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		byte[] frame = new byte[256];
+		int b;
+		while((b = data.read()) >= 0){
+			if(b == 0){
+				int length = (data.readUnsignedByte() << 16) | (data.readUnsignedByte() << 8) | data.readUnsignedByte();
+				if(length < 1 || length > ServerConfig.maxLineBytes)
+					throw new IOException("Bad frame length "+length);
+				if(frame.length < length)
+					frame = new byte[Math.max(length, frame.length*2)];
+				data.readFully(frame, 0, length);
+				if(heartbeat != null)
+					heartbeat.touch();
+				ByteBuffer buf = ByteBuffer.wrap(frame, 0, length);
+				byte type = buf.get();
+				if(type == Frames.SEND && admit(Frames.HEADER + length))
+					handleMessage(Frames.decodeSend(buf, System.currentTimeMillis()));
+				else if(type == Frames.FILE_CHUNK)
+					pause(FileStore.onChunk(writer.getId(), buf));
+			}
+			else{
+				line.reset();
+				while(b >= 0 && b != '\n'){
+					line.write(b);
+					b = data.read();
+				}
+				handleLine(line.toString("UTF-8").trim(), line.size()+1);
+			}
+		}//while
+	}
+	
+	/**
+	 * Adds current time to a line received from a client, stores it and sends it to the
+	 * client's room. A repeated "/sync" (sent by a client whose hello came too
+	 * late) and "/pong" are ignored, and not counted against the rate limits.
+	 * @param line The line as received
+	 * @param size Size of the line in bytes with its '\n', as the "nio" mode counts it
+	 */
+	private void handleLine(String line, int size) throws IOException {
+		if(heartbeat != null)
+			heartbeat.touch();
+		if(Protocol.isSync(line) || Protocol.isPong(line))
+			return;
+		if(admit(size))
+			handleMessage(Message.parse(System.currentTimeMillis(), line));
+	}
+	
+	/**
+	 * Checks a message against the rate limits, see RateLimiter. A delayed message is
+	 * waited for here, so nothing more is read from the client meanwhile.
+	 * @param size Size of the message in bytes, for frames with the header
+	 * @return false if the message is to be dropped
+	 * @throws IOException if the client is to be disconnected
+	 */
+	private boolean admit(int size) throws IOException {
+		long verdict = RateLimiter.admit(limiter, size);
+		if(verdict == RateLimiter.PASS)
+			return true;
+		if(verdict == RateLimiter.DROP){
+			writer.getQueue().offer(Outgoing.line(RateLimiter.DROPPED));
+			return false;
+		}
+		if(verdict == RateLimiter.DISCONNECT)
+			throw new IOException("Over the rate limit");
+		pause(verdict);
+		return true;
+	}
+
+	/**
+	 * Counts the bytes of text in UTF-8 without encoding it, for the rate limits of
+	 * lines, which the reader of the "threads" mode only gives as text
+	 */
+	private static int utf8Length(String s) {
+		int bytes = 0;
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			if(c < 0x80){
+				bytes++;
+			}
+			else if(c < 0x800){
+				bytes += 2;
+			}
+			else if(Character.isHighSurrogate(c) && i+1 < s.length() && Character.isLowSurrogate(s.charAt(i+1))){
+				bytes += 4;
+				i++;
+			}
+			else{
+				bytes += 3;
+			}
+		}//for
+		return bytes;
+	}
+
+	/**
+	 * Stops reading from the client for a while
+	 * @param nanos How long, 0 for not at all
+	 */
+	private static void pause(long nanos) throws IOException {
+		if(nanos <= 0)
+			return;
 		try {
-			tempOutput = new PrintStream(sockets.get(newbieIndex).getOutputStream());
-		} catch (IOException e) {
-			e.printStackTrace();
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
 		}
-		for(int i = 0; i < messages.size(); i++){
-			tempOutput.println(messages.get(i));
+	}
+	
+	/**
+	 * Stores a message received from a client and sends it to all members of the
+	 * client's current room, or handles it as a command for rooms
+	 * @param msg The message
+	 */
+	private void handleMessage(Message msg) {
+		room = rooms.onMessage(writer.getId(), writer.getQueue(), room, msg);
+	}
+	
+	/**
+	 * Counts the bytes read from a client, see Metrics
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if(b >= 0)
+				Metrics.bytesIn.increment();
+			return b;
 		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if(n > 0)
+				Metrics.bytesIn.add(n);
+			return n;
+		}
+	}//class CountingInputStream
+	
+	/**
+	 * The message everyone gets when a client connects. Connection ids are given out
+	 * by every node of a cluster on its own, so there the node is named too.
+	 * @param id Connection id of the client
+	 * @return The text of the message
+	 */
+	public static String connectedMessage(int id) {
+		if(cluster == null)
+			return "Client no "+id+" connected.";
+		return "Client no "+id+" connected to node "+ServerConfig.nodeId+".";
+	}
+	
+	/**
+	 * First message of a replay of from..to-1. Only the newest ServerConfig.syncMax
+	 * messages are replayed, the client is told how many were left out.
+	 * @param from Number of the first message the client asked for
+	 * @param to Number after the last message to replay
+	 * @return Number of the first message to replay
+	 */
+	public static long replayStart(long from, long to) {
+		return Math.max(Math.max(0, from), to - ServerConfig.syncMax);
+	}
+	
+	/**
+	 * First message of a replay to a client that said "/sync". Messages older than the
+	 * most it asked for are left out without telling it, it asks for them with "/history"
+	 * if it wants them.
+	 * @param lastSeen Sequence number of the newest message the client has
+	 * @param most The most messages the client wants, -1 if it didn't say
+	 * @param to Number after the last message to replay
+	 * @return Number of the first message the client wants
+	 */
+	public static long syncStart(long lastSeen, long most, long to) {
+		long from = Math.max(0, lastSeen+1);
+		if(most >= 0)
+			from = Math.max(from, to - most);
+		return Math.min(from, to);
+	}
+	
+	/**
+	 * Sends all messages stored in the history to a newly connected client. The client's
+	 * writer thread reads them from the history and writes them before any new message.
+	 * A client that syncs will get only a part of them, see readHello().
+	 * Called with the lock of the history held.
+	 * @param newbie Writer of a newly connected client
+	 */
+	public void sendAllMessagesToNewbie(ClientWriter newbie) {
+		newbie.replay(0, rooms.getMain().getReleased());
 	}
 	
 	/**
-	 * Returns the current time which is added at the beginning of a message
+	 * Returns the current time which is added at the beginning of a message. The String
+	 * is created once per second, see Stamper.
 	 * @return A string with the current time
 	 */
 	public static String getTime(){
-		Calendar cal = Calendar.getInstance();
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-        return sdf.format(cal.getTime());
+		return Stamper.get().time(System.currentTimeMillis());
 	}
 	
 	
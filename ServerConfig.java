@@ -0,0 +1,406 @@
+/**
+ * Startup options of the Server. Every option has a default value and can be changed
+ * on the command line with --name=value, e.g. "java Server --mode=nio --selectors=4".
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class ServerConfig {
+
+	/**
+	 * How client connections are served:
+	 * "threads" - the original accept loop in Server.waitForClient() with a thread per client,
+	 * "virtual" - the same accept loop, but every client is handled by a virtual thread,
+	 * "nio" - a handful of selector threads in ServerReactor serve every connection.
+	 */
+	public static String mode = "threads";
+
+	/**
+	 * Port that clients connect to
+	 */
+	public static int port = 9999;
+
+	/**
+	 * What clients connect through in the "threads" and "virtual" modes, see Transport:
+	 * "tcp" - the network,
+	 * "loopback" - memory, for clients started in the same process, see LoopbackTransport.
+	 * The "nio" mode has TCP only.
+	 */
+	public static String transport = "tcp";
+
+	/**
+	 * Number of selector threads used by ServerReactor in the "nio" mode
+	 */
+	public static int selectors = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * The longest line (in bytes) a client may send in the "nio" mode. A client that
+	 * exceeds it is disconnected.
+	 */
+	public static int maxLineBytes = 64 * 1024;
+
+	/**
+	 * How many messages may wait for a single client before the slow consumer policy
+	 * kicks in
+	 */
+	public static int outboundCapacity = 1024;
+
+	/**
+	 * What to do with a client whose outbound queue is full: "drop-oldest", "disconnect"
+	 * or "block", see OutboundQueue
+	 */
+	public static String slowConsumer = "drop-oldest";
+
+	/**
+	 * How long the "block" policy waits for room in a full queue
+	 */
+	public static long blockTimeoutMillis = 1000;
+
+	/**
+	 * The most messages written to a socket at once
+	 */
+	public static int writeBatch = 64;
+
+	/**
+	 * Directory of the history segment files, see MessageHistory
+	 */
+	public static String historyDir = "history";
+
+	/**
+	 * Most messages of the history kept in memory
+	 */
+	public static int historySlots = 65536;
+
+	/**
+	 * Most bytes of history records kept in memory
+	 */
+	public static long historyBudgetBytes = 16L * 1024 * 1024;
+
+	/**
+	 * Size of a history segment file after which a new one is started
+	 */
+	public static long historySegmentBytes = 64L * 1024 * 1024;
+
+	/**
+	 * Number of history pages read from disk that are cached in memory
+	 */
+	public static int historyCachedPages = 64;
+
+	/**
+	 * File of the durable message log, see MessageLog. Empty to keep no log.
+	 */
+	public static String logFile = "messages.log";
+
+	/**
+	 * Longest time a logged message waits to be fsync'ed
+	 */
+	public static long logSyncMillis = 10;
+
+	/**
+	 * Number of logged messages waiting for fsync that makes it happen at once
+	 */
+	public static int logSyncBatch = 512;
+
+	/**
+	 * How long a new client has to send "/sync" before it's treated as an old client
+	 * that gets the history as plain lines
+	 */
+	public static int helloTimeoutMillis = 500;
+
+	/**
+	 * The most messages replayed to a connecting client. Older ones are left out and
+	 * the client is told how many.
+	 */
+	public static long syncMax = 1000;
+
+	/**
+	 * The most messages sent for one "/history", see Protocol.HISTORY
+	 */
+	public static int historyPageMax = 200;
+
+	/**
+	 * Most messages of a room other than the main one kept in memory. Rooms are cheap
+	 * and many, so they get a smaller share than the main history.
+	 */
+	public static int roomSlots = 4096;
+
+	/**
+	 * Most bytes of records of a room other than the main one kept in memory
+	 */
+	public static long roomBudgetBytes = 1024L * 1024;
+
+	/**
+	 * Whether the words of the messages are indexed for "/search", see SearchIndex
+	 */
+	public static boolean search = true;
+
+	/**
+	 * The most messages a search returns
+	 */
+	public static int searchResults = 20;
+
+	/**
+	 * Number of this Server in the cluster, an index into cluster
+	 */
+	public static int nodeId = 0;
+
+	/**
+	 * Addresses the nodes of the cluster listen on for each other, e.g.
+	 * "localhost:9101,localhost:9102", in the order of their node ids. Empty for a Server
+	 * working alone. See Cluster.
+	 */
+	public static String cluster = "";
+
+	/**
+	 * How long a node waits before connecting again to a node that isn't reachable
+	 */
+	public static long clusterRetryMillis = 1000;
+
+	/**
+	 * How long a starting node waits for the other nodes to send it what they have of
+	 * the rooms it owns, before it numbers new messages anyway. See Cluster.
+	 */
+	public static long clusterCatchUpMillis = 5000;
+
+	/**
+	 * The most frames waiting to be sent to another node. When they don't fit, the link
+	 * is dropped and the node fetches what it missed once it's connected again.
+	 */
+	public static int clusterQueueCapacity = 65536;
+
+	/**
+	 * How long a client may say nothing before it gets "/ping", 0 for no heartbeats.
+	 * See Heartbeat.
+	 */
+	public static long heartbeatMillis = 30000;
+
+	/**
+	 * How long a client may say nothing, not even "/pong", before it's disconnected
+	 */
+	public static long idleTimeoutMillis = 90000;
+
+	/**
+	 * The most messages and bytes a second a single client may send, 0 for no limit.
+	 * Off unless set: a client that connects again sends everything it has no echo
+	 * for at once, and that shouldn't be thrown away. See RateLimiter.
+	 */
+	public static double clientMessagesPerSecond = 0;
+	public static double clientBytesPerSecond = 0;
+
+	/**
+	 * The most messages and bytes a second all clients together may send, 0 for no limit
+	 */
+	public static double globalMessagesPerSecond = 0;
+	public static double globalBytesPerSecond = 0;
+
+	/**
+	 * How many seconds' worth of messages may be sent at once, above the limits
+	 */
+	public static double rateBurstSeconds = 2;
+
+	/**
+	 * What to do with a message over a limit: "drop", "delay" or "disconnect"
+	 */
+	public static String rateLimitAction = "drop";
+
+	/**
+	 * Directory where uploaded files are kept, empty to switch file transfers off.
+	 * See FileStore.
+	 */
+	public static String filesDir = "files";
+
+	/**
+	 * The biggest file that can be uploaded
+	 */
+	public static long maxFileBytes = 100L * 1024 * 1024;
+
+	/**
+	 * The most bytes a second of a single upload or download, 0 for no limit
+	 */
+	public static double transferBytesPerSecond = 1024 * 1024;
+
+	/**
+	 * Every how many messages one is printed, 1 to print them all, 0 to print none.
+	 * See ServerLog.
+	 */
+	public static int printEvery = 100;
+
+	/**
+	 * Whether clients connecting and disconnecting are printed
+	 */
+	public static boolean logConnections = true;
+
+	/**
+	 * How often a line of statistics is printed, 0 never. See Metrics.
+	 */
+	public static long statsEverySeconds = 10;
+
+	/**
+	 * Reads options from the command line arguments. Unknown options are reported
+	 * and ignored.
+	 * @param args Arguments of the main() method
+	 */
+	public static void parse(String[] args) {
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(!arg.startsWith("--") || eq < 0){
+				System.out.println("Ignoring argument: "+arg);
+				continue;
+			}
+			String name = arg.substring(2, eq);
+			String value = arg.substring(eq+1);
+			try {
+				set(name, value);
+			} catch (IllegalArgumentException e) {
+				System.out.println("Wrong value of the option "+name+": "+value);
+			}
+		}
+	}
+
+	private static void set(String name, String value) {
+		if(name.equals("mode")){
+			if(!value.equals("threads") && !value.equals("virtual") && !value.equals("nio"))
+				throw new IllegalArgumentException(value);
+			mode = value;
+		}
+		else if(name.equals("port")){
+			port = Integer.parseInt(value);
+		}
+		else if(name.equals("transport")){
+			Transport.named(value);
+			transport = value;
+		}
+		else if(name.equals("selectors")){
+			selectors = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("max-line-bytes")){
+			maxLineBytes = Integer.parseInt(value);
+		}
+		else if(name.equals("outbound-capacity")){
+			outboundCapacity = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("slow-consumer")){
+			if(!value.equals("drop-oldest") && !value.equals("disconnect") && !value.equals("block"))
+				throw new IllegalArgumentException(value);
+			slowConsumer = value;
+		}
+		else if(name.equals("block-timeout-ms")){
+			blockTimeoutMillis = Long.parseLong(value);
+		}
+		else if(name.equals("write-batch")){
+			writeBatch = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("history-dir")){
+			historyDir = value;
+		}
+		else if(name.equals("history-slots")){
+			historySlots = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("history-memory-mb")){
+			historyBudgetBytes = Long.parseLong(value) * 1024 * 1024;
+		}
+		else if(name.equals("history-segment-mb")){
+			historySegmentBytes = Long.parseLong(value) * 1024 * 1024;
+		}
+		else if(name.equals("history-cached-pages")){
+			historyCachedPages = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("log-file")){
+			logFile = value;
+		}
+		else if(name.equals("log-sync-ms")){
+			logSyncMillis = Math.max(0, Long.parseLong(value));
+		}
+		else if(name.equals("log-sync-batch")){
+			logSyncBatch = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("hello-timeout-ms")){
+			helloTimeoutMillis = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("sync-max")){
+			syncMax = Math.max(0, Long.parseLong(value));
+		}
+		else if(name.equals("history-page-max")){
+			historyPageMax = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("room-slots")){
+			roomSlots = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("room-memory-mb")){
+			roomBudgetBytes = Long.parseLong(value) * 1024 * 1024;
+		}
+		else if(name.equals("search")){
+			if(!value.equals("true") && !value.equals("false"))
+				throw new IllegalArgumentException(value);
+			search = value.equals("true");
+		}
+		else if(name.equals("search-results")){
+			searchResults = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("node-id")){
+			nodeId = Integer.parseInt(value);
+		}
+		else if(name.equals("cluster")){
+			cluster = value;
+		}
+		else if(name.equals("cluster-retry-ms")){
+			clusterRetryMillis = Math.max(1, Long.parseLong(value));
+		}
+		else if(name.equals("cluster-catch-up-ms")){
+			clusterCatchUpMillis = Math.max(0, Long.parseLong(value));
+		}
+		else if(name.equals("cluster-queue-capacity")){
+			clusterQueueCapacity = Math.max(1, Integer.parseInt(value));
+		}
+		else if(name.equals("heartbeat-ms")){
+			heartbeatMillis = Math.max(0, Long.parseLong(value));
+		}
+		else if(name.equals("idle-timeout-ms")){
+			idleTimeoutMillis = Math.max(1, Long.parseLong(value));
+		}
+		else if(name.equals("client-msgs-per-s")){
+			clientMessagesPerSecond = Double.parseDouble(value);
+		}
+		else if(name.equals("client-bytes-per-s")){
+			clientBytesPerSecond = Double.parseDouble(value);
+		}
+		else if(name.equals("global-msgs-per-s")){
+			globalMessagesPerSecond = Double.parseDouble(value);
+		}
+		else if(name.equals("global-bytes-per-s")){
+			globalBytesPerSecond = Double.parseDouble(value);
+		}
+		else if(name.equals("rate-burst-s")){
+			rateBurstSeconds = Math.max(0, Double.parseDouble(value));
+		}
+		else if(name.equals("rate-limit-action")){
+			if(!value.equals("drop") && !value.equals("delay") && !value.equals("disconnect"))
+				throw new IllegalArgumentException(value);
+			rateLimitAction = value;
+		}
+		else if(name.equals("files-dir")){
+			filesDir = value;
+		}
+		else if(name.equals("max-file-bytes")){
+			maxFileBytes = Math.max(0, Long.parseLong(value));
+		}
+		else if(name.equals("transfer-bytes-per-s")){
+			transferBytesPerSecond = Double.parseDouble(value);
+		}
+		else if(name.equals("print-every")){
+			printEvery = Math.max(0, Integer.parseInt(value));
+		}
+		else if(name.equals("log-connections")){
+			if(!value.equals("true") && !value.equals("false"))
+				throw new IllegalArgumentException(value);
+			logConnections = value.equals("true");
+		}
+		else if(name.equals("stats-every-s")){
+			statsEverySeconds = Math.max(0, Long.parseLong(value));
+		}
+		else{
+			System.out.println("Unknown option: "+name);
+		}
+	}
+
+}//class ServerConfig
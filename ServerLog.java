@@ -0,0 +1,37 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the Server prints while it works. Printing every message to System.out takes
+ * a lock on the stream for every line, which under load costs more than handling the
+ * message, so only every ServerConfig.printEvery-th message is printed. Connections
+ * and disconnections are printed unless ServerConfig.logConnections is off.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class ServerLog {
+
+	private static final AtomicLong messages = new AtomicLong();
+
+	/**
+	 * Prints a message if it's its turn
+	 * @param msg A stored message
+	 */
+	public static void message(Message msg) {
+		int every = ServerConfig.printEvery;
+		if(every <= 0)
+			return;
+		if(every == 1 || messages.incrementAndGet() % every == 0)
+			Stamper.get().print(msg, System.out);
+	}
+
+	/**
+	 * Prints something about a client connecting or disconnecting
+	 * @param text What to print
+	 */
+	public static void connection(String text) {
+		if(ServerConfig.logConnections)
+			System.out.println(text);
+	}
+
+}//class ServerLog
@@ -0,0 +1,699 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Event loop alternative to the thread-per-client Server. One acceptor thread waits for
+ * new connections and hands them over to a small, fixed number of selector threads
+ * (ServerConfig.selectors). Every selector thread reads whatever its clients have sent,
+ * cuts it into lines, stamps and stores each line like Server.handleMessages() does
+ * and queues the result for all connected clients. Nothing blocks, so an idle client
+ * costs a few buffers instead of a thread.
+ *
+ * Started instead of the original accept loop by "java Server --mode=nio".
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class ServerReactor implements Runnable {
+
+	private ServerSocketChannel serverChannel;
+	private Selector acceptSelector;
+	private Worker[] workers;
+	private int nextWorker = 0;
+
+	/**
+	 * Opens the listening channel and starts the selector threads.
+	 * @param port Port that clients connect to
+	 * @param workerCount Number of selector threads serving the clients
+	 * @throws IOException If the port cannot be bound
+	 */
+	public ServerReactor(int port, int workerCount) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		acceptSelector = Selector.open();
+		serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		workers = new Worker[workerCount];
+		for(int i = 0; i < workerCount; i++){
+			workers[i] = new Worker();
+			Thread t = new Thread(workers[i], "selector-"+i);
+			t.setDaemon(true);
+			t.start();
+		}
+		System.out.println("Waiting for clients ("+workerCount+" selector threads)...");
+	}
+
+	/**
+	 * Accepts clients and assigns them to the selector threads in turn
+	 */
+	@Override
+	public void run() {
+		while(true){
+			try {
+				acceptSelector.select();
+				acceptSelector.selectedKeys().clear();
+				SocketChannel channel;
+				while((channel = serverChannel.accept()) != null){
+					long accepted = System.nanoTime();
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					workers[nextWorker].register(channel, accepted);
+					nextWorker = (nextWorker + 1) % workers.length;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}//while(true)
+	}//run()
+
+	/**
+	 * Called by a selector thread when a new client has been registered. Mirrors
+	 * Server.waitForClient(): the newbie gets the old messages first, then everyone
+	 * gets to know about the new client. The client is registered in Server.connections
+	 * and in the main room like in the other modes. Nothing is written until the client
+	 * has sent "/sync" or ServerConfig.helloTimeoutMillis has passed, see Worker.hello().
+	 */
+	private static void onConnect(NioClient client) {
+		ServerLog.connection("Client conected");
+		synchronized(Server.history){
+			client.backlogTo = Server.rooms.getMain().getReleased();
+			client.id = Server.connections.add(client.out);
+			Server.rooms.getMain().subscribe(client.id, client.out);
+			client.room = Server.rooms.getMain();
+			String message = Server.connectedMessage(client.id);
+			Server.rooms.getMain().post(Message.system(System.currentTimeMillis(), message));
+		}
+		Metrics.since(Metrics.accept, client.acceptedAt);
+	}
+
+	/**
+	 * Called by a selector thread for every complete line received from a client.
+	 * Adds current time, stores the message and sends it to the client's room.
+	 * A repeated "/sync" (sent by a client whose hello came too late) and "/pong" are ignored.
+	 */
+	private static void onLine(NioClient client, String line) {
+		if(Protocol.isSync(line) || Protocol.isPong(line))
+			return;
+		onMessage(client, Message.parse(System.currentTimeMillis(), line));
+	}
+
+	/**
+	 * Stores a message received from a client and sends it to all members of the
+	 * client's current room, or handles it as a command for rooms. Storing and queueing
+	 * happen under the same lock as the replay in onConnect(), so a newbie gets every
+	 * message exactly once.
+	 */
+	private static void onMessage(NioClient client, Message msg) {
+		client.room = Server.rooms.onMessage(client.id, client.out, client.room, msg);
+	}
+
+	/**
+	 * State of a single connection: the channel, bytes received but not yet cut into
+	 * lines, and messages waiting to be written.
+	 */
+	private static class NioClient {
+		final SocketChannel channel;
+		final Worker worker;
+		SelectionKey key;
+
+		/**
+		 * System.nanoTime() when the connection was accepted
+		 */
+		final long acceptedAt;
+
+		/**
+		 * Connection id, see ConnectionRegistry
+		 */
+		int id;
+
+		/**
+		 * The room messages of the client go to, see Rooms. Only the selector thread
+		 * touches it.
+		 */
+		Room room;
+
+		/**
+		 * Heartbeat of the client, null if it has none
+		 */
+		Heartbeat heartbeat;
+
+		/**
+		 * Rate limits of the client, null if it has none. While a message waits for
+		 * them, resumeAt is the System.nanoTime() when it's handled and nothing is read
+		 * from the client; the message stays in the buffer and is marked as admitted.
+		 */
+		final RateLimiter limiter = RateLimiter.forClient();
+		long resumeAt = 0;
+		boolean admitted = false;
+
+		/**
+		 * System.nanoTime() when the next chunk of the client's download may be written,
+		 * 0 if it's not waiting
+		 */
+		long chunkAt = 0;
+		ByteBuffer in = ByteBuffer.allocate(1024);
+		final OutboundQueue out;
+
+		/**
+		 * Numbers of the old messages written before anything from the queue. Only the
+		 * selector thread touches them.
+		 */
+		long backlogFrom = 0;
+		long backlogTo = 0;
+
+		/**
+		 * Number of old messages left out of the replay, announced before it
+		 */
+		long skipped = 0;
+
+		/**
+		 * Protocol.TEXT, or Protocol.TAGGED / Protocol.BINARY once the client has sent "/sync"
+		 */
+		int format = Protocol.TEXT;
+
+		/**
+		 * Sender numbers the client knows in the binary format
+		 */
+		final BitSet knownSenders = new BitSet();
+		boolean binaryAcked = false;
+
+		/**
+		 * Becomes true when the first line has been read or the hello timeout has passed.
+		 * Nothing is written before that.
+		 */
+		boolean started = false;
+		long helloDeadline;
+
+		/**
+		 * Batch being written; the socket may have taken only a part of it
+		 */
+		ByteBuffer[] pending = new ByteBuffer[0];
+
+		/**
+		 * Set while the client is waiting for its selector thread to enable OP_WRITE,
+		 * so that a burst of messages wakes the selector up only once
+		 */
+		final AtomicBoolean writeRequested = new AtomicBoolean();
+
+		NioClient(SocketChannel channel, Worker worker, long acceptedAt) {
+			this.channel = channel;
+			this.worker = worker;
+			this.acceptedAt = acceptedAt;
+			this.out = new OutboundQueue(new Runnable() {
+				@Override
+				public void run() {
+					requestWrite();
+				}
+			}, new Runnable() {
+				@Override
+				public void run() {
+					disconnect();
+				}
+			});
+		}
+
+		/**
+		 * Asks the selector thread for OP_WRITE. Can be called from any thread.
+		 */
+		void requestWrite() {
+			if(writeRequested.compareAndSet(false, true)){
+				worker.requestWrite(this);
+			}
+		}
+
+		/**
+		 * Removes the client from the connections and closes the channel. Can be called
+		 * from any thread, closing the channel cancels its key.
+		 */
+		void disconnect() {
+			Server.connections.remove(id);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * OP_READ, or nothing while a message waits for the rate limits
+		 */
+		int readOps() {
+			return resumeAt == 0 ? SelectionKey.OP_READ : 0;
+		}
+
+		boolean hasPending() {
+			for(int i = 0; i < pending.length; i++){
+				if(pending[i].hasRemaining())
+					return true;
+			}
+			return false;
+		}
+	}//class NioClient
+
+	/**
+	 * A selector thread. Owns the selection keys of its clients; other threads only
+	 * put channels and write requests into its queues and wake it up.
+	 */
+	private static class Worker implements Runnable {
+		private final Selector selector;
+		private final Queue<NioClient> newClients = new ConcurrentLinkedQueue<NioClient>();
+		private final Queue<NioClient> writeRequests = new ConcurrentLinkedQueue<NioClient>();
+		private final ArrayList<byte[]> batch = new ArrayList<byte[]>();
+		private final ArrayList<Message> old = new ArrayList<Message>();
+		private final ArrayList<Outgoing> queued = new ArrayList<Outgoing>();
+
+		/**
+		 * New clients that haven't said anything yet, oldest first
+		 */
+		private final ArrayDeque<NioClient> awaitingHello = new ArrayDeque<NioClient>();
+
+		/**
+		 * Clients with a message waiting for the rate limits or reading paused by an
+		 * upload, and clients whose download waits for its limit
+		 */
+		private final ArrayList<NioClient> delayed = new ArrayList<NioClient>();
+		private final ArrayList<NioClient> waitingChunks = new ArrayList<NioClient>();
+
+		Worker() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(SocketChannel channel, long acceptedAt) {
+			newClients.add(new NioClient(channel, this, acceptedAt));
+			selector.wakeup();
+		}
+
+		void requestWrite(NioClient client) {
+			writeRequests.add(client);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while(true){
+				try {
+					long timeout = 0;
+					NioClient oldest = awaitingHello.peek();
+					if(oldest != null)
+						timeout = Math.max(1, oldest.helloDeadline - System.currentTimeMillis());
+					for(int i = 0; i < delayed.size(); i++){
+						long millis = Math.max(1, (delayed.get(i).resumeAt - System.nanoTime()) / 1000000);
+						timeout = timeout == 0 ? millis : Math.min(timeout, millis);
+					}
+					for(int i = 0; i < waitingChunks.size(); i++){
+						long millis = Math.max(1, (waitingChunks.get(i).chunkAt - System.nanoTime()) / 1000000);
+						timeout = timeout == 0 ? millis : Math.min(timeout, millis);
+					}
+					selector.select(timeout);
+					registerNewClients();
+					expireHellos();
+					resumeDelayed();
+					resumeChunks();
+					enableWrites();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()){
+						SelectionKey key = it.next();
+						it.remove();
+						NioClient client = (NioClient) key.attachment();
+						try {
+							if(key.isValid() && key.isReadable() && client.resumeAt == 0)
+								read(client);
+							if(key.isValid() && key.isWritable())
+								write(client);
+						} catch (IOException e) {
+							close(client);
+						} catch (RuntimeException e) {
+							// a bug with one client mustn't take the others on this worker with it
+							e.printStackTrace();
+							close(client);
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}//while(true)
+		}//run()
+
+		private void registerNewClients() {
+			NioClient client;
+			while((client = newClients.poll()) != null){
+				try {
+					client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+				} catch (ClosedChannelException e) {
+					continue;
+				}
+				onConnect(client);
+				client.helloDeadline = System.currentTimeMillis() + ServerConfig.helloTimeoutMillis;
+				awaitingHello.add(client);
+			}
+		}
+
+		/**
+		 * Starts the clients that haven't sent anything in time as old clients
+		 */
+		private void expireHellos() {
+			long now = System.currentTimeMillis();
+			NioClient client;
+			while((client = awaitingHello.peek()) != null && (client.started || client.helloDeadline <= now)){
+				awaitingHello.poll();
+				start(client);
+			}
+		}
+
+		/**
+		 * Handles the first line of a client. If it's "/sync", the client gets tagged
+		 * lines or frames and only the messages it hasn't seen; otherwise it's an old
+		 * client and the line is an ordinary message.
+		 */
+		private void hello(NioClient client, String line) {
+			if(Protocol.isSync(line)){
+				client.format = Protocol.wantsBinary(line) ? Protocol.BINARY : Protocol.TAGGED;
+				client.heartbeat = Heartbeat.start(client.id, client.out);
+				client.backlogFrom = Server.syncStart(Protocol.lastSeen(line), Protocol.mostOf(line), client.backlogTo);
+				start(client);
+			}
+			else{
+				start(client);
+				onLine(client, line);
+			}
+		}
+
+		/**
+		 * Lets the client's messages be written, starting with the replay
+		 */
+		private void start(NioClient client) {
+			if(client.started)
+				return;
+			client.started = true;
+			long first = Server.replayStart(client.backlogFrom, client.backlogTo);
+			client.skipped = first - client.backlogFrom;
+			client.backlogFrom = first;
+			client.writeRequested.set(true);
+			if(client.key.isValid())
+				client.key.interestOps(client.readOps() | SelectionKey.OP_WRITE);
+		}
+
+		/**
+		 * Handles the messages whose delay is over and reads from their clients again
+		 */
+		private void resumeDelayed() {
+			long now = System.nanoTime();
+			for(int i = delayed.size() - 1; i >= 0; i--){
+				NioClient client = delayed.get(i);
+				if(client.resumeAt - now > 0)
+					continue;
+				delayed.remove(i);
+				client.resumeAt = 0;
+				if(!client.key.isValid())
+					continue;
+				client.key.interestOps(client.key.interestOps() | SelectionKey.OP_READ);
+				try {
+					dispatch(client);
+				} catch (IOException e) {
+					close(client);
+				}
+			}
+		}
+
+		/**
+		 * Lets the downloads whose wait is over write their next chunk
+		 */
+		private void resumeChunks() {
+			long now = System.nanoTime();
+			for(int i = waitingChunks.size() - 1; i >= 0; i--){
+				NioClient client = waitingChunks.get(i);
+				if(client.chunkAt - now > 0)
+					continue;
+				waitingChunks.remove(i);
+				client.chunkAt = 0;
+				if(client.key.isValid())
+					client.key.interestOps(client.key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+
+		/**
+		 * Checks a message against the rate limits, see RateLimiter
+		 * @param size Size of the message in bytes
+		 * @return true to handle the message now, false if it's dropped or, when
+		 * client.resumeAt is set, delayed
+		 * @throws IOException if the client is to be disconnected
+		 */
+		private boolean admit(NioClient client, int size) throws IOException {
+			if(client.admitted){
+				client.admitted = false;
+				return true;
+			}
+			long verdict = RateLimiter.admit(client.limiter, size);
+			if(verdict == RateLimiter.PASS)
+				return true;
+			if(verdict == RateLimiter.DROP){
+				client.out.offer(Outgoing.line(RateLimiter.DROPPED));
+				return false;
+			}
+			if(verdict == RateLimiter.DISCONNECT)
+				throw new IOException("Over the rate limit");
+			client.admitted = true;
+			pause(client, verdict);
+			return false;
+		}
+
+		/**
+		 * Stops reading from the client for a while, see resumeDelayed()
+		 */
+		private void pause(NioClient client, long nanos) {
+			client.resumeAt = System.nanoTime() + nanos;
+			client.key.interestOps(client.key.interestOps() & ~SelectionKey.OP_READ);
+			delayed.add(client);
+		}
+
+		private void enableWrites() {
+			NioClient client;
+			while((client = writeRequests.poll()) != null){
+				if(client.started && client.key != null && client.key.isValid())
+					client.key.interestOps(client.key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+
+		/**
+		 * Reads what is available and dispatches every complete line. An incomplete line
+		 * stays in the buffer until the rest of it arrives.
+		 */
+		private void read(NioClient client) throws IOException {
+			if(!client.in.hasRemaining()){
+				if(client.in.capacity() >= ServerConfig.maxLineBytes)
+					throw new IOException("Line too long");
+				ByteBuffer bigger = ByteBuffer.allocate(Math.min(client.in.capacity()*2, ServerConfig.maxLineBytes));
+				client.in.flip();
+				bigger.put(client.in);
+				client.in = bigger;
+			}
+			int n = client.channel.read(client.in);
+			if(n < 0)
+				throw new IOException("End of stream");
+			Metrics.bytesIn.add(n);
+			if(client.heartbeat != null)
+				client.heartbeat.touch();
+			dispatch(client);
+		}
+
+		/**
+		 * Dispatches every complete line or frame in the buffer, unless one of them has
+		 * to wait for the rate limits
+		 */
+		private void dispatch(NioClient client) throws IOException {
+			ByteBuffer in = client.in;
+			in.flip();
+			while(in.hasRemaining() && client.resumeAt == 0){
+				if(client.format == Protocol.BINARY && in.get(in.position()) == 0){
+					if(!readFrame(client, in))
+						break;
+				}
+				else if(!readLine(client, in)){
+					break;
+				}
+			}
+			in.compact();
+		}
+
+		/**
+		 * Cuts one line off the buffer and dispatches it
+		 * @return false if the line isn't complete yet
+		 */
+		private boolean readLine(NioClient client, ByteBuffer in) throws IOException {
+			byte[] array = in.array();
+			int start = in.position();
+			for(int i = start; i < in.limit(); i++){
+				if(array[i] == '\n'){
+					int end = i;
+					if(end > start && array[end-1] == '\r')
+						end--;
+					String line = new String(array, start, end-start, StandardCharsets.UTF_8);
+					// answers to heartbeats and repeated hellos don't count against the limits
+					boolean control = Protocol.isSync(line) || Protocol.isPong(line);
+					if(client.started && !control && !admit(client, i+1-start)){
+						if(client.resumeAt != 0)
+							return false;
+						in.position(i+1);
+						return true;
+					}
+					in.position(i+1);
+					if(client.started)
+						onLine(client, line);
+					else
+						hello(client, line);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Decodes one frame straight from the buffer and dispatches it
+		 * @return false if the frame isn't complete yet
+		 */
+		private boolean readFrame(NioClient client, ByteBuffer in) throws IOException {
+			int length;
+			try {
+				length = Frames.available(in);
+			} catch (IllegalArgumentException e) {
+				throw new IOException(e.getMessage());
+			}
+			if(length > ServerConfig.maxLineBytes - Frames.HEADER)
+				throw new IOException("Frame too long");
+			if(length < 0)
+				return false;
+			int end = in.position() + Frames.HEADER + length;
+			if(in.get(in.position() + Frames.HEADER) == Frames.SEND && !admit(client, Frames.HEADER + length)){
+				if(client.resumeAt != 0)
+					return false;
+				in.position(end);
+				return true;
+			}
+			ByteBuffer frame = in.duplicate();
+			frame.position(in.position() + Frames.HEADER);
+			frame.limit(end);
+			in.position(end);
+			byte type = frame.get();
+			if(type == Frames.SEND)
+				onMessage(client, Frames.decodeSend(frame, System.currentTimeMillis()));
+			else if(type == Frames.FILE_CHUNK){
+				long wait = FileStore.onChunk(client.id, frame);
+				if(wait > 0)
+					pause(client, wait);
+			}
+			return true;
+		}
+
+		/**
+		 * Writes batches of up to ServerConfig.writeBatch messages with a single gathering
+		 * write each, until the socket buffer is full. The backlog goes first. OP_WRITE
+		 * is switched off once everything has been written.
+		 */
+		private void write(NioClient client) throws IOException {
+			if(!client.started){
+				client.key.interestOps(client.readOps());
+				return;
+			}
+			while(true){
+				if(!client.hasPending()){
+					// a chunk begun goes out whole before anything else
+					if(writeChunk(client, false) < 0)
+						return;
+					nextBatch(client);
+					if(batch.isEmpty()){
+						int chunk = writeChunk(client, true);
+						if(chunk < 0)
+							return;
+						if(chunk == 0)
+							break;
+						continue;
+					}
+					client.pending = new ByteBuffer[batch.size()];
+					for(int i = 0; i < batch.size(); i++){
+						client.pending[i] = ByteBuffer.wrap(batch.get(i));
+					}
+					batch.clear();
+				}
+				Metrics.bytesOut.add(client.channel.write(client.pending));
+				if(client.hasPending())
+					return;
+			}
+			client.key.interestOps(client.readOps());
+			client.writeRequested.set(false);
+			if(!client.out.isEmpty() && client.writeRequested.compareAndSet(false, true))
+				client.key.interestOps(client.readOps() | SelectionKey.OP_WRITE);
+		}
+
+		/**
+		 * Writes a chunk of the client's download, see FileStore
+		 * @param start false to only finish a chunk begun before
+		 * @return -1 if the socket is full, 0 if there is nothing to write now, 1 to go on
+		 */
+		private int writeChunk(NioClient client, boolean start) throws IOException {
+			FileStore.Transfer download = FileStore.download(client.id, client.format);
+			if(download == null || (!start && !download.isSending()))
+				return 0;
+			if(!download.isSending()){
+				// messages came meanwhile, e.g. the line announcing the download
+				if(!client.out.isEmpty())
+					return 1;
+				long wait = download.due();
+				if(wait > 0){
+					if(client.chunkAt == 0)
+						waitingChunks.add(client);
+					client.chunkAt = System.nanoTime() + wait;
+					return 0;
+				}
+			}
+			if(!download.send(client.channel))
+				return -1;
+			if(download.isComplete())
+				FileStore.finished(client.id, download);
+			return 1;
+		}
+
+		/**
+		 * Fills the batch with the next messages of the client: the rest of the backlog
+		 * if there is one, the outbound queue otherwise
+		 */
+		private void nextBatch(NioClient client) {
+			if(client.format == Protocol.BINARY && !client.binaryAcked){
+				batch.add(OutboundQueue.encode(Protocol.BINARY_ACK));
+				client.binaryAcked = true;
+			}
+			if(client.skipped > 0){
+				batch.add(Outgoing.line(Protocol.truncated(client.format, client.skipped)).bytes(client.format));
+				client.skipped = 0;
+			}
+			if(client.backlogFrom < client.backlogTo){
+				long to = Math.min(client.backlogFrom + ServerConfig.writeBatch, client.backlogTo);
+				Server.history.read(client.backlogFrom, to, old);
+				for(int i = 0; i < old.size(); i++){
+					Outgoing.of(old.get(i)).appendTo(client.format, client.knownSenders, batch);
+				}
+				old.clear();
+				client.backlogFrom = to;
+				Metrics.messagesOut.add(batch.size());
+				return;
+			}
+			client.out.drainTo(queued, ServerConfig.writeBatch);
+			for(int i = 0; i < queued.size(); i++){
+				queued.get(i).appendTo(client.format, client.knownSenders, batch);
+			}
+			queued.clear();
+			Metrics.messagesOut.add(batch.size());
+		}
+
+		private void close(NioClient client) {
+			client.out.close();
+		}
+	}//class Worker
+
+}//class ServerReactor
@@ -0,0 +1,207 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+/**
+ * Turns messages into the lines sent to clients, e.g.
+ * "(12:34:01) Lukasz: Example message\n" or "[room] (12:34:01) ..." in other rooms than
+ * the main one, without creating any objects on the way.
+ * The text is encoded to UTF-8 straight into a byte buffer and the "(12:34:01) " prefix
+ * is worked out once per second rather than for every message.
+ *
+ * A Stamper is not thread-safe; every thread gets its own from get(), together with
+ * a buffer that is reused for every message.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Stamper {
+
+	private static final ThreadLocal<Stamper> stampers = new ThreadLocal<Stamper>() {
+		@Override
+		protected Stamper initialValue() {
+			return new Stamper();
+		}
+	};
+
+	private final TimeZone zone = TimeZone.getDefault();
+
+	/**
+	 * "(HH:mm:ss) " of the cached second, digits filled in by refresh()
+	 */
+	private final byte[] prefix = {'(', '0', '0', ':', '0', '0', ':', '0', '0', ')', ' '};
+
+	/**
+	 * The cached second, in seconds since the epoch
+	 */
+	private long second = Long.MIN_VALUE;
+
+	/**
+	 * The cached second as "HH:mm:ss", created only when someone asks for it
+	 */
+	private String time;
+
+	/**
+	 * Reused by every stamp() of this thread, grows if a message doesn't fit
+	 */
+	private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+	/**
+	 * Returns the Stamper of the current thread
+	 */
+	public static Stamper get() {
+		return stampers.get();
+	}
+
+	/**
+	 * Formats the time the way it's shown to the users
+	 * @param millis Time in milliseconds since the epoch
+	 * @return Time like "12:34:01"
+	 */
+	public String time(long millis) {
+		refresh(millis);
+		if(time == null)
+			time = new String(prefix, 1, 8, StandardCharsets.US_ASCII);
+		return time;
+	}
+
+	/**
+	 * Stamps a message into the buffer of this Stamper
+	 * @param seq Number of the message, put in front as "#seq " if not negative
+	 * @param timestamp When the message was received
+	 * @param sender Nickname, "" if none, null for messages of the Server itself
+	 * @param body The text
+	 * @param room Name of the room put in front as "[room] ", null for the main room
+	 * @return The buffer with the line from position 0 to its limit. It's overwritten
+	 * by the next call.
+	 */
+	public ByteBuffer stamp(long seq, long timestamp, String sender, String body, String room) {
+		int longest = 40 + 3 * (body.length() + (sender == null ? 0 : sender.length()) + (room == null ? 0 : room.length()));
+		if(buffer.capacity() < longest)
+			buffer = ByteBuffer.allocate(Math.max(longest, buffer.capacity()*2));
+		buffer.clear();
+		stamp(seq, timestamp, sender, body, room, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Stamps a message into any buffer
+	 * @param seq Number of the message, put in front as "#seq " if not negative
+	 * @param timestamp When the message was received
+	 * @param sender Nickname, "" if none, null for messages of the Server itself
+	 * @param body The text
+	 * @param room Name of the room put in front as "[room] ", null for the main room
+	 * @param out Where the line goes, from its position on
+	 * @throws java.nio.BufferOverflowException If out is too small
+	 */
+	public void stamp(long seq, long timestamp, String sender, String body, String room, ByteBuffer out) {
+		if(seq >= 0){
+			out.put((byte) '#');
+			putNumber(seq, out);
+			out.put((byte) ' ');
+		}
+		if(room != null){
+			out.put((byte) '[');
+			putUtf8(room, out);
+			out.put((byte) ']');
+			out.put((byte) ' ');
+		}
+		if(sender != null){
+			refresh(timestamp);
+			out.put(prefix);
+			if(!sender.isEmpty()){
+				putUtf8(sender, out);
+				out.put((byte) ':');
+				out.put((byte) ' ');
+			}
+		}
+		putUtf8(body, out);
+		out.put((byte) '\n');
+	}
+
+	/**
+	 * Stamps a message into a new array of exactly its size, e.g. to be shared by the
+	 * queues of many clients
+	 */
+	public byte[] toBytes(long seq, long timestamp, String sender, String body, String room) {
+		ByteBuffer line = stamp(seq, timestamp, sender, body, room);
+		byte[] bytes = new byte[line.remaining()];
+		line.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Writes a message to a stream, like println(msg) but without building the String
+	 */
+	public void print(Message msg, PrintStream out) {
+		ByteBuffer line = stamp(-1, msg.getTimestamp(), msg.getSender(), msg.getBody(), msg.getRoom());
+		out.write(line.array(), 0, line.limit());
+	}
+
+	/**
+	 * Fills in the prefix if the time is in another second than the cached one
+	 */
+	private void refresh(long millis) {
+		long s = Math.floorDiv(millis, 1000);
+		if(s == second)
+			return;
+		second = s;
+		time = null;
+		long local = Math.floorDiv(millis + zone.getOffset(millis), 1000);
+		int ofDay = Math.floorMod(local, 86400);
+		putTwoDigits(ofDay / 3600, 1);
+		putTwoDigits(ofDay / 60 % 60, 4);
+		putTwoDigits(ofDay % 60, 7);
+	}
+
+	private void putTwoDigits(int value, int at) {
+		prefix[at] = (byte) ('0' + value / 10);
+		prefix[at+1] = (byte) ('0' + value % 10);
+	}
+
+	private static void putNumber(long value, ByteBuffer out) {
+		long div = 1;
+		while(value / div >= 10)
+			div *= 10;
+		while(div > 0){
+			out.put((byte) ('0' + value / div % 10));
+			div /= 10;
+		}
+	}
+
+	/**
+	 * Encodes a String to UTF-8 one char at a time. A lone surrogate becomes '?',
+	 * like in String.getBytes().
+	 */
+	private static void putUtf8(String s, ByteBuffer out) {
+		int length = s.length();
+		for(int i = 0; i < length; i++){
+			char c = s.charAt(i);
+			if(c < 0x80){
+				out.put((byte) c);
+			}
+			else if(c < 0x800){
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+			else if(Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(s.charAt(i+1))){
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xF0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (cp & 0x3F)));
+			}
+			else if(Character.isSurrogate(c)){
+				out.put((byte) '?');
+			}
+			else{
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}//for
+	}
+
+}//class Stamper
@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Transport over TCP, with a ServerSocket on the Server and a Socket per connection.
+ * Clients turn Nagle's algorithm off, as they write whole batches at once anyway.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class TcpTransport implements Transport {
+
+	public static final TcpTransport INSTANCE = new TcpTransport();
+
+	@Override
+	public Listener listen(int port) throws IOException {
+		final ServerSocket serverSocket = new ServerSocket(port);
+		return new Listener() {
+			@Override
+			public Connection accept() throws IOException {
+				return new TcpConnection(serverSocket.accept());
+			}
+
+			@Override
+			public void close() throws IOException {
+				serverSocket.close();
+			}
+		};
+	}
+
+	@Override
+	public Connection connect(String host, int port, int timeoutMillis) throws IOException {
+		Socket s = new Socket();
+		try {
+			s.connect(new InetSocketAddress(host, port), timeoutMillis);
+			s.setTcpNoDelay(true);
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		return new TcpConnection(s);
+	}
+
+	/**
+	 * A connection that is just a Socket
+	 */
+	private static class TcpConnection implements Connection {
+		private final Socket socket;
+
+		TcpConnection(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return socket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return socket.getOutputStream();
+		}
+
+		@Override
+		public void setReadTimeout(int millis) throws IOException {
+			socket.setSoTimeout(millis);
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}//class TcpConnection
+
+}//class TcpTransport
@@ -0,0 +1,114 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timing wheel: a ring of slots, each holding the tasks due in one tick. A single
+ * thread moves to the next slot every tick and runs the tasks whose time has come, so
+ * any number of timeouts costs one thread and, per tick, only the tasks of that slot.
+ * A task due more than a whole turn of the wheel later waits for as many turns.
+ *
+ * Tasks may be scheduled from any thread; they are put into their slots by the wheel's
+ * thread at the next tick. A task that runs may schedule itself again. Timing is as
+ * precise as a tick, which is plenty for heartbeats.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class TimingWheel implements Runnable {
+
+	/**
+	 * Something to be done at some time. Scheduled at most once at a time.
+	 */
+	public abstract static class Task {
+		private long deadline;
+		private long rounds;
+
+		/**
+		 * Called by the wheel's thread when the task is due
+		 * @param wheel The wheel, e.g. to schedule the task again
+		 * @param now Current time in milliseconds
+		 */
+		protected abstract void expire(TimingWheel wheel, long now);
+	}//class Task
+
+	private final long tickMillis;
+	private final ArrayList<ArrayDeque<Task>> slots;
+	private final ConcurrentLinkedQueue<Task> added = new ConcurrentLinkedQueue<Task>();
+	private final long startTime = System.currentTimeMillis();
+
+	/**
+	 * Number of ticks done. Only the wheel's thread touches it.
+	 */
+	private long tick = 0;
+
+	/**
+	 * Creates a wheel, which doesn't turn until start() is called
+	 * @param tickMillis Length of a tick
+	 * @param slotCount Number of slots, one turn takes tickMillis * slotCount
+	 */
+	public TimingWheel(long tickMillis, int slotCount) {
+		this.tickMillis = Math.max(1, tickMillis);
+		int count = Math.max(1, slotCount);
+		this.slots = new ArrayList<ArrayDeque<Task>>(count);
+		for(int i = 0; i < count; i++){
+			slots.add(new ArrayDeque<Task>());
+		}
+	}
+
+	/**
+	 * Starts the thread that turns the wheel
+	 */
+	public void start() {
+		Thread t = new Thread(this, "timing-wheel");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Schedules a task
+	 * @param task The task, not scheduled at the moment
+	 * @param delayMillis How long from now it's due
+	 */
+	public void schedule(Task task, long delayMillis) {
+		task.deadline = System.currentTimeMillis() + Math.max(0, delayMillis);
+		added.add(task);
+	}
+
+	@Override
+	public void run() {
+		while(true){
+			long wait = startTime + (tick + 1) * tickMillis - System.currentTimeMillis();
+			if(wait > 0){
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			tick++;
+			long now = System.currentTimeMillis();
+			Task task;
+			while((task = added.poll()) != null){
+				long due = Math.max(tick, (task.deadline - startTime + tickMillis - 1) / tickMillis);
+				task.rounds = (due - tick) / slots.size();
+				slots.get((int) (due % slots.size())).add(task);
+			}
+			ArrayDeque<Task> slot = slots.get((int) (tick % slots.size()));
+			for(int n = slot.size(); n > 0; n--){
+				task = slot.poll();
+				if(task.rounds > 0){
+					task.rounds--;
+					slot.add(task);
+					continue;
+				}
+				try {
+					task.expire(this, now);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}//while(true)
+	}//run()
+
+}//class TimingWheel
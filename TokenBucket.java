@@ -0,0 +1,99 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket without a lock. Instead of a number of tokens it keeps a single time: when
+ * the bucket will be full again. Taking tokens moves that time forward by their cost,
+ * which is allowed as long as it stays within the burst from now. One AtomicLong and a
+ * compare-and-set are all it takes, so any number of threads can take from the same
+ * bucket without waiting for each other.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class TokenBucket {
+
+	/**
+	 * How long it takes for a token to come back
+	 */
+	private final long nanosPerToken;
+
+	/**
+	 * How far ahead of now the bucket may be drawn, i.e. the size of the bucket
+	 */
+	private final long burstNanos;
+
+	/**
+	 * System.nanoTime() at which the bucket is full again
+	 */
+	private final AtomicLong full = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Creates a full bucket
+	 * @param perSecond Tokens that come back every second
+	 * @param burst The most tokens the bucket holds
+	 */
+	public TokenBucket(double perSecond, double burst) {
+		this.nanosPerToken = Math.max(1, Math.round(1e9 / perSecond));
+		this.burstNanos = Math.max(nanosPerToken, Math.round(Math.max(1, burst) * nanosPerToken));
+	}
+
+	/**
+	 * Takes tokens if there are enough. More than the bucket holds count as a full bucket.
+	 * @param tokens How many
+	 * @return 0 if they were taken, otherwise how many nanoseconds it takes until they
+	 * would be there
+	 */
+	public long tryTake(long tokens) {
+		long cost = cost(tokens);
+		while(true){
+			long now = System.nanoTime();
+			long current = full.get();
+			long next = Math.max(current, now) + cost;
+			long wait = next - now - burstNanos;
+			if(wait > 0)
+				return wait;
+			if(full.compareAndSet(current, next))
+				return 0;
+		}
+	}
+
+	/**
+	 * Takes tokens even if there aren't enough, borrowing from the future
+	 * @param tokens How many
+	 * @return How many nanoseconds to wait until the borrowed tokens are there, 0 if
+	 * nothing was borrowed
+	 */
+	public long take(long tokens) {
+		long cost = cost(tokens);
+		while(true){
+			long now = System.nanoTime();
+			long current = full.get();
+			long next = Math.max(current, now) + cost;
+			if(full.compareAndSet(current, next))
+				return Math.max(0, next - now - burstNanos);
+		}
+	}
+
+	/**
+	 * Puts back tokens taken a moment ago, e.g. when the message they were taken for
+	 * was stopped by another bucket. The bucket is never more than full.
+	 * @param tokens How many
+	 */
+	public void giveBack(long tokens) {
+		long cost = cost(tokens);
+		while(true){
+			long now = System.nanoTime();
+			long current = full.get();
+			long next = Math.max(now, current - cost);
+			if(next == current || full.compareAndSet(current, next))
+				return;
+		}
+	}
+
+	private long cost(long tokens) {
+		if(tokens >= burstNanos / nanosPerToken)
+			return burstNanos;
+		return tokens * nanosPerToken;
+	}
+
+}//class TokenBucket
@@ -0,0 +1,177 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Every line the client has shown, for TranscriptView. Only the newest lines (the window)
+ * are kept in memory, in a ring; older ones are moved to a temporary file, from which
+ * they are read back when the user scrolls up to them. Memory stays the same however
+ * long the conversation gets, and the file goes away when the application ends.
+ *
+ * Older messages fetched from the Server when the user scrolls up are added at the
+ * start (prepend()). They go straight to a file of their own, as they are about to
+ * scroll out of sight anyway.
+ *
+ * Used on the Event Dispatch Thread only.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Transcript {
+
+	/**
+	 * The newest lines; line i is at i % window
+	 */
+	private final String[] lines;
+	private final int window;
+
+	/**
+	 * Number of lines added at the end, in memory and in the file
+	 */
+	private int size = 0;
+
+	/**
+	 * Number of the oldest lines added at the end that are in the file; the rest is in memory
+	 */
+	private int spilled = 0;
+	private final LineFile spill = new LineFile();
+
+	/**
+	 * Lines added at the start, the newest first: the line before line 0 is line 0 of
+	 * this file, the one before it line 1 and so on
+	 */
+	private final LineFile prepended = new LineFile();
+
+	/**
+	 * Creates an empty transcript
+	 * @param window The most lines kept in memory
+	 */
+	public Transcript(int window) {
+		this.window = Math.max(1, window);
+		this.lines = new String[this.window];
+	}
+
+	/**
+	 * Adds a line at the end, moving the oldest line in memory to the file if the
+	 * window is full
+	 * @param line The line, without '\n'
+	 */
+	public void add(String line) {
+		if(size - spilled == window)
+			spill();
+		lines[size % window] = line;
+		size++;
+	}
+
+	/**
+	 * Adds a line at the start, before all the others. Lines of the same page of older
+	 * messages are added newest first.
+	 * @param line The line, without '\n'
+	 */
+	public void prepend(String line) {
+		prepended.add(line);
+	}
+
+	/**
+	 * Returns a line
+	 * @param i Number of the line, from 0 to size()-1
+	 * @return The line, or an empty one if it couldn't be read from the file
+	 */
+	public String get(int i) {
+		if(i < 0 || i >= size())
+			throw new IndexOutOfBoundsException(i+" of "+size());
+		int before = prepended.size();
+		if(i < before)
+			return prepended.get(before - 1 - i);
+		i -= before;
+		if(i >= spilled)
+			return lines[i % window];
+		return spill.get(i);
+	}
+
+	/**
+	 * Number of lines, those added at the start included
+	 */
+	public int size() {
+		return prepended.size() + size;
+	}
+
+	/**
+	 * Moves the oldest line in memory to the file
+	 */
+	private void spill() {
+		spill.add(lines[spilled % window]);
+		lines[spilled % window] = null;
+		spilled++;
+	}
+
+	/**
+	 * Lines in a temporary file, created when the first line is added. Where line i
+	 * starts is offsets[i], where it ends offsets[i+1]. Lines are collected in pending
+	 * and written in chunks rather than one by one.
+	 */
+	private static class LineFile {
+		private long[] offsets = new long[1024];
+		private int count = 0;
+		private RandomAccessFile file;
+		private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		private long written = 0;
+
+		void add(String line) {
+			byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+			if(count + 2 > offsets.length){
+				long[] bigger = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, bigger, 0, offsets.length);
+				offsets = bigger;
+			}
+			offsets[count+1] = offsets[count] + bytes.length;
+			pending.write(bytes, 0, bytes.length);
+			count++;
+			if(pending.size() >= 64 * 1024){
+				try {
+					flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		String get(int i) {
+			try {
+				flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			// without a file, the lines still pending can't be read either
+			if(file == null)
+				return "";
+			try {
+				byte[] bytes = new byte[(int)(offsets[i+1] - offsets[i])];
+				file.seek(offsets[i]);
+				file.readFully(bytes);
+				return new String(bytes, StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return "";
+			}
+		}
+
+		int size() {
+			return count;
+		}
+
+		private void flush() throws IOException {
+			if(pending.size() == 0)
+				return;
+			if(file == null){
+				File f = File.createTempFile("transcript", ".txt");
+				f.deleteOnExit();
+				file = new RandomAccessFile(f, "rw");
+			}
+			file.seek(written);
+			file.write(pending.toByteArray());
+			written += pending.size();
+			pending.reset();
+		}
+	}//class LineFile
+
+}//class Transcript
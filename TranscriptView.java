@@ -0,0 +1,332 @@
+import java.awt.*;
+import java.util.ArrayList;
+import javax.swing.*;
+
+/**
+ * Shows a Transcript in a JScrollPane, in place of a JTextArea that would keep the
+ * whole conversation in one document. Lines are wrapped at spaces to the width of the
+ * view. How many rows every line takes is measured once, and the first row of every
+ * line is cached, so painting finds the first visible line with a binary search and
+ * wraps and draws only the lines on the screen. The cache is rebuilt only when the
+ * width changes. It takes 4 bytes for every line ever shown, also those the Transcript
+ * keeps only in its file, as scrolling anywhere needs where every line starts: about
+ * 4 MB for a million lines, which is left unbounded on purpose.
+ *
+ * While the view is scrolled to the bottom, it follows new lines like a text area with
+ * an always updating caret does. Lines added at the top (older messages) don't move
+ * what is on the screen.
+ *
+ * Used on the Event Dispatch Thread only.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class TranscriptView extends JComponent implements Scrollable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int MARGIN = 2;
+
+	private final Transcript transcript;
+
+	/**
+	 * First row of line i when wrapped to measuredWidth, i.e. the sum of rows of the
+	 * lines before it. Line i takes tops[i+1] - tops[i] rows, tops[size] is the number
+	 * of all rows.
+	 */
+	private int[] tops = new int[1024];
+	private int totalRows = 0;
+
+	/**
+	 * Width the rows were measured for, -1 if they haven't been
+	 */
+	private int measuredWidth = -1;
+
+	/**
+	 * Pieces of a line being wrapped, reused
+	 */
+	private final ArrayList<String> wrapped = new ArrayList<String>();
+
+	/**
+	 * Creates an empty view
+	 * @param window The most lines kept in memory, see Transcript
+	 */
+	public TranscriptView(int window) {
+		transcript = new Transcript(window);
+		setFont(UIManager.getFont("TextArea.font"));
+		setBackground(Color.WHITE);
+		setForeground(Color.BLACK);
+		setOpaque(true);
+	}
+
+	/**
+	 * Adds a line at the end
+	 * @param line The line, without '\n'
+	 */
+	public void addLine(String line) {
+		boolean follow = isAtBottom();
+		add(line);
+		changed(follow);
+	}
+
+	/**
+	 * Adds many lines at once, laid out and painted once
+	 * @param text The lines, each ending with '\n'
+	 */
+	public void append(String text) {
+		boolean follow = isAtBottom();
+		ArrayList<String> added = lines(text);
+		for(int i = 0; i < added.size(); i++){
+			add(added.get(i));
+		}
+		changed(follow);
+	}
+
+	/**
+	 * Adds many lines at the start, before all the others, keeping the same lines on
+	 * the screen
+	 * @param text The lines, oldest first, each ending with '\n'
+	 */
+	public void prepend(String text) {
+		ArrayList<String> added = lines(text);
+		int n = added.size();
+		int old = transcript.size();
+		for(int i = n-1; i >= 0; i--){
+			transcript.prepend(added.get(i));
+		}
+		while(old + n + 1 >= tops.length){
+			tops = grow(tops);
+		}
+		System.arraycopy(tops, 0, tops, n, old + 1);
+		FontMetrics metrics = getFontMetrics(getFont());
+		int addedRows = 0;
+		for(int i = 0; i < n; i++){
+			tops[i] = addedRows;
+			addedRows += measuredWidth < 0 ? 1 : wrap(added.get(i), metrics, measuredWidth, null);
+		}
+		for(int i = n; i <= old + n; i++){
+			tops[i] += addedRows;
+		}
+		totalRows = tops[old + n];
+		final int shift = addedRows * rowHeight();
+		revalidate();
+		repaint();
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				Container parent = getParent();
+				if(parent instanceof JViewport){
+					JViewport viewport = (JViewport) parent;
+					Point p = viewport.getViewPosition();
+					viewport.setViewPosition(new Point(p.x, p.y + shift));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Number of lines, also those no longer in memory
+	 */
+	public int getLineCount() {
+		return transcript.size();
+	}
+
+	private void add(String line) {
+		int i = transcript.size();
+		transcript.add(line);
+		if(i + 1 >= tops.length)
+			tops = grow(tops);
+		totalRows += measuredWidth < 0 ? 1 : wrap(line, getFontMetrics(getFont()), measuredWidth, null);
+		tops[i+1] = totalRows;
+	}
+
+	/**
+	 * Cuts text into lines at '\n'. Empty lines are kept, the end of the text is a line
+	 * only if it doesn't end with '\n'.
+	 */
+	private static ArrayList<String> lines(String text) {
+		ArrayList<String> lines = new ArrayList<String>();
+		int start = 0;
+		int end;
+		while((end = text.indexOf('\n', start)) >= 0){
+			lines.add(text.substring(start, end));
+			start = end + 1;
+		}
+		if(start < text.length())
+			lines.add(text.substring(start));
+		return lines;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] bigger = new int[array.length * 2];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+
+	private void changed(boolean follow) {
+		revalidate();
+		repaint();
+		if(follow){
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					scrollRectToVisible(new Rectangle(0, getHeight() - 1, 1, 1));
+				}
+			});
+		}
+	}
+
+	private boolean isAtBottom() {
+		Rectangle visible = getVisibleRect();
+		return visible.height == 0 || visible.y + visible.height >= getHeight() - rowHeight();
+	}
+
+	private int rowHeight() {
+		return getFontMetrics(getFont()).getHeight();
+	}
+
+	/**
+	 * Measures every line again for a new width. Lines that are only in the file are
+	 * read from it, which happens only when the view is resized.
+	 */
+	private void remeasure(int width) {
+		measuredWidth = width;
+		FontMetrics metrics = getFontMetrics(getFont());
+		totalRows = 0;
+		for(int i = 0; i < transcript.size(); i++){
+			totalRows += wrap(transcript.get(i), metrics, width, null);
+			tops[i+1] = totalRows;
+		}
+	}
+
+	/**
+	 * Wraps a line at spaces, or anywhere if a word alone is too wide
+	 * @param line The line
+	 * @param metrics Metrics of the font
+	 * @param width Width available
+	 * @param out Where the pieces go, null to only count them
+	 * @return Number of rows the line takes, at least 1
+	 */
+	private static int wrap(String line, FontMetrics metrics, int width, ArrayList<String> out) {
+		int count = 0;
+		int start = 0;
+		while(true){
+			int x = 0;
+			int lastSpace = -1;
+			int i = start;
+			while(i < line.length()){
+				char c = line.charAt(i);
+				x += metrics.charWidth(c);
+				if(x > width && i > start)
+					break;
+				if(c == ' ')
+					lastSpace = i;
+				i++;
+			}
+			if(i == line.length()){
+				if(out != null)
+					out.add(line.substring(start));
+				return count + 1;
+			}
+			int end = lastSpace > start ? lastSpace + 1 : i;
+			if(out != null)
+				out.add(line.substring(start, end));
+			count++;
+			start = end;
+		}
+	}
+
+	private int widthForText() {
+		Insets insets = getInsets();
+		return Math.max(1, getWidth() - insets.left - insets.right - 2*MARGIN);
+	}
+
+	@Override
+	public void doLayout() {
+		int width = widthForText();
+		if(width != measuredWidth && getWidth() > 0){
+			remeasure(width);
+			// the height depends on the width
+			revalidate();
+			repaint();
+		}
+	}
+
+	@Override
+	public void setBounds(int x, int y, int width, int height) {
+		super.setBounds(x, y, width, height);
+		doLayout();
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		Insets insets = getInsets();
+		return new Dimension(100, totalRows * rowHeight() + insets.top + insets.bottom);
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		if(transcript.size() == 0 || measuredWidth < 0)
+			return;
+		g.setColor(getForeground());
+		g.setFont(getFont());
+		FontMetrics metrics = g.getFontMetrics();
+		int height = metrics.getHeight();
+		Insets insets = getInsets();
+		int firstRow = Math.max(0, (clip.y - insets.top) / height);
+		int lastRow = (clip.y + clip.height - insets.top) / height;
+		for(int i = lineAtRow(firstRow); i < transcript.size() && tops[i] <= lastRow; i++){
+			wrapped.clear();
+			wrap(transcript.get(i), metrics, measuredWidth, wrapped);
+			for(int r = 0; r < wrapped.size(); r++){
+				int y = insets.top + (tops[i] + r) * height + metrics.getAscent();
+				g.drawString(wrapped.get(r), insets.left + MARGIN, y);
+			}
+		}
+	}
+
+	/**
+	 * The line that the row belongs to
+	 */
+	private int lineAtRow(int row) {
+		int low = 0;
+		int high = transcript.size() - 1;
+		while(low < high){
+			int mid = (low + high + 1) >>> 1;
+			if(tops[mid] <= row)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	@Override
+	public Dimension getPreferredScrollableViewportSize() {
+		return getPreferredSize();
+	}
+
+	@Override
+	public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return orientation == SwingConstants.VERTICAL ? rowHeight() : 10;
+	}
+
+	@Override
+	public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportWidth() {
+		return true;
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportHeight() {
+		return false;
+	}
+
+}//class TranscriptView
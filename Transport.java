@@ -0,0 +1,81 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * How the Server and ClientModel reach each other. TcpTransport is the real network,
+ * LoopbackTransport connects them inside a single process without sockets, for tests
+ * and benchmarks that are about the Server and not about the kernel. Chosen with
+ * ServerConfig.transport on the Server and given to the constructor of ClientModel.
+ *
+ * Both sides only see streams, so everything above them, the protocol and the
+ * formats, is the same whichever transport is used. The "nio" mode of the Server
+ * works on selectable channels and has TCP only.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public interface Transport {
+
+	/**
+	 * Starts listening for clients
+	 * @param port Port to listen on
+	 * @return The listener, to accept clients from
+	 * @throws IOException if the port is taken
+	 */
+	Listener listen(int port) throws IOException;
+
+	/**
+	 * Connects to a Server
+	 * @param host Host of the Server
+	 * @param port Port of the Server
+	 * @param timeoutMillis How long to wait for the connection, 0 for ever
+	 * @throws IOException if nobody listens there
+	 */
+	Connection connect(String host, int port, int timeoutMillis) throws IOException;
+
+	/**
+	 * Accepts the connections of clients
+	 */
+	interface Listener extends Closeable {
+
+		/**
+		 * Waits for the next client
+		 * @throws IOException if the listener has been closed
+		 */
+		Connection accept() throws IOException;
+	}
+
+	/**
+	 * A single connection, like a Socket. Closing it makes reads on it return -1 or throw
+	 * in any thread blocked in them, and the other side reads -1 once it has read what
+	 * had been written before.
+	 */
+	interface Connection extends Closeable {
+
+		InputStream getInputStream() throws IOException;
+
+		OutputStream getOutputStream() throws IOException;
+
+		/**
+		 * Like Socket.setSoTimeout(): a read waiting longer throws
+		 * java.net.SocketTimeoutException
+		 * @param millis The longest wait, 0 for ever
+		 */
+		void setReadTimeout(int millis) throws IOException;
+	}
+
+	/**
+	 * Returns the transport of a name used in the options: "tcp" or "loopback"
+	 * @throws IllegalArgumentException for other names
+	 */
+	static Transport named(String name) {
+		if(name.equals("tcp"))
+			return TcpTransport.INSTANCE;
+		if(name.equals("loopback"))
+			return LoopbackTransport.INSTANCE;
+		throw new IllegalArgumentException(name);
+	}
+
+}//interface Transport
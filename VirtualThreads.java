@@ -0,0 +1,66 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Starts client handlers on virtual threads (--mode=virtual). A virtual thread that
+ * blocks on a socket read gives its carrier thread back, so tens of thousands of idle
+ * clients cost only their stacks on the heap.
+ *
+ * Virtual threads are looked up at runtime, which keeps the Server compatible with
+ * JDKs that don't have them. On such a JDK handlers run on platform threads with a
+ * small stack instead.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class VirtualThreads {
+
+	/**
+	 * Stack size of the fallback platform threads. A handler only needs a few frames.
+	 */
+	private static final long FALLBACK_STACK_SIZE = 256 * 1024;
+
+	/**
+	 * Thread.startVirtualThread(Runnable) or null if this JDK has no virtual threads
+	 */
+	private static final MethodHandle startVirtualThread = lookup();
+
+	private static MethodHandle lookup() {
+		try {
+			return MethodHandles.publicLookup().findStatic(Thread.class, "startVirtualThread",
+					MethodType.methodType(Thread.class, Runnable.class));
+		} catch (Exception e) {
+			System.out.println("Virtual threads are not available, using platform threads.");
+			return null;
+		}
+	}
+
+	/**
+	 * Tells if handlers really run on virtual threads
+	 * @return true if this JDK supports virtual threads
+	 */
+	public static boolean isSupported() {
+		return startVirtualThread != null;
+	}
+
+	/**
+	 * Starts a new virtual thread (or a small platform thread as a fallback)
+	 * @param task The code to run
+	 * @return The started thread
+	 */
+	public static Thread start(Runnable task) {
+		if(startVirtualThread != null){
+			try {
+				return (Thread) startVirtualThread.invokeExact(task);
+			} catch (Throwable e) {
+				// Virtual threads may be a disabled preview feature, fall through
+			}
+		}
+		Thread t = new Thread(null, task, "handler", FALLBACK_STACK_SIZE);
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+}//class VirtualThreads
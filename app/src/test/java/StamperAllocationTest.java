@@ -0,0 +1,86 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Stamper is there so that stamping a message creates no objects. These tests count
+ * the bytes the thread allocates while stamping, with the ThreadMXBean of HotSpot, so
+ * that a change which brings garbage back into the hot path fails the build instead of
+ * showing up only in "-prof gc" of StampBenchmark.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class StamperAllocationTest {
+
+	private static final int WARM_UP = 200000;
+	private static final int MEASURED = 100000;
+
+	/**
+	 * Allowed for the whole measured loop, for whatever the JVM itself does meanwhile;
+	 * a single object per message would be far more
+	 */
+	private static final long SLACK_BYTES = 16 * 1024;
+
+	private static final String BODY = "Example message with some ąćę and an emoji 😀";
+
+	@Test
+	public void stampIntoOwnBufferAllocatesNothing() {
+		final Stamper stamper = Stamper.get();
+		final long start = System.currentTimeMillis();
+		assertAllocatesNothing(new Runnable() {
+			private long seq = 0;
+
+			@Override
+			public void run() {
+				// a new second now and then, so refresh() is measured too
+				stamper.stamp(seq, start + seq * 10, "Lukasz", BODY, "room");
+				seq++;
+			}
+		});
+	}
+
+	@Test
+	public void stampIntoGivenBufferAllocatesNothing() {
+		final Stamper stamper = Stamper.get();
+		final ByteBuffer out = ByteBuffer.allocate(4096);
+		final long start = System.currentTimeMillis();
+		assertAllocatesNothing(new Runnable() {
+			private long seq = 0;
+
+			@Override
+			public void run() {
+				out.clear();
+				stamper.stamp(seq, start + seq * 10, "Lukasz", BODY, null, out);
+				seq++;
+			}
+		});
+	}
+
+	@Test
+	public void stampIsTheSameAsToString() {
+		Message msg = new Message(-1, System.currentTimeMillis(), "Lukasz", BODY, "room");
+		ByteBuffer line = Stamper.get().stamp(-1, msg.getTimestamp(), msg.getSender(), msg.getBody(), msg.getRoom());
+		assertEquals(msg.toString()+"\n", new String(line.array(), 0, line.limit(), StandardCharsets.UTF_8));
+	}
+
+	private static void assertAllocatesNothing(Runnable stamp) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		for(int i = 0; i < WARM_UP; i++){
+			stamp.run();
+		}
+		long before = threads.getThreadAllocatedBytes(id);
+		for(int i = 0; i < MEASURED; i++){
+			stamp.run();
+		}
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+		assertTrue("Stamping "+MEASURED+" messages allocated "+allocated+" bytes", allocated < SLACK_BYTES);
+	}
+
+}//class StamperAllocationTest
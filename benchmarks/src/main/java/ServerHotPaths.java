@@ -0,0 +1,123 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Implementation of benchmarks.HotPaths, kept in the default package so that it can
+ * use the classes of the Server and the client.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class ServerHotPaths implements benchmarks.HotPaths {
+
+	private static final String BODY = "Example message with a few words in it";
+
+	//fan-out
+	private Room room;
+	private OutboundQueue[] queues;
+	private int[] formats;
+	private BitSet[] knownSenders;
+	private final ArrayList<Outgoing> drained = new ArrayList<Outgoing>();
+	private final ArrayList<byte[]> written = new ArrayList<byte[]>();
+	private long seq = 0;
+
+	//replay
+	private MessageHistory history;
+	private final ArrayList<Message> old = new ArrayList<Message>();
+	private final ArrayList<byte[]> encoded = new ArrayList<byte[]>();
+
+	@Override
+	public void setUpFanOut(int sinks) {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "fan-out-"+System.nanoTime());
+		room = new Room("bench", new MessageHistory(dir, 16, 1024 * 1024, 1024 * 1024, 1));
+		// the sender table of the binary format is the main room's
+		Server.history = room.getHistory();
+		queues = new OutboundQueue[sinks];
+		formats = new int[sinks];
+		knownSenders = new BitSet[sinks];
+		Runnable nothing = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+		for(int i = 0; i < sinks; i++){
+			queues[i] = new OutboundQueue(null, nothing);
+			formats[i] = i % 3 == 0 ? Protocol.TEXT : i % 3 == 1 ? Protocol.TAGGED : Protocol.BINARY;
+			knownSenders[i] = new BitSet();
+			room.subscribe(i+1, queues[i]);
+		}
+		dir.delete();
+	}
+
+	@Override
+	public int fanOut() {
+		room.sendToAll(new Message(seq++, System.currentTimeMillis(), "Lukasz", BODY));
+		int bytes = 0;
+		for(int i = 0; i < queues.length; i++){
+			queues[i].drainTo(drained, Integer.MAX_VALUE);
+			for(int j = 0; j < drained.size(); j++){
+				drained.get(j).appendTo(formats[i], knownSenders[i], written);
+			}
+			for(int j = 0; j < written.size(); j++){
+				bytes += written.get(j).length;
+			}
+			drained.clear();
+			written.clear();
+		}
+		return bytes;
+	}
+
+	@Override
+	public String getTime() {
+		return Server.getTime();
+	}
+
+	@Override
+	public int stamp(ByteBuffer out) {
+		out.clear();
+		Stamper.get().stamp(seq++, System.currentTimeMillis(), "Lukasz", BODY, null, out);
+		return out.position();
+	}
+
+	@Override
+	public String messageToString() {
+		return new Message(seq++, System.currentTimeMillis(), "Lukasz", BODY).toString();
+	}
+
+	@Override
+	public void setUpHistory(int size, File dir) {
+		history = new MessageHistory(dir, ServerConfig.historySlots, ServerConfig.historyBudgetBytes,
+				ServerConfig.historySegmentBytes, ServerConfig.historyCachedPages);
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < size; i++){
+			history.append(new Message(start + i, "User"+(i % 50), BODY+" "+i));
+		}
+	}
+
+	@Override
+	public long replay() {
+		long bytes = 0;
+		long size = history.size();
+		BitSet knownSenders = new BitSet();
+		for(long i = 0; i < size; i += ServerConfig.writeBatch){
+			history.read(i, Math.min(i + ServerConfig.writeBatch, size), old);
+			for(int j = 0; j < old.size(); j++){
+				Outgoing.of(old.get(j)).appendTo(Protocol.TEXT, knownSenders, encoded);
+			}
+			for(int j = 0; j < encoded.size(); j++){
+				bytes += encoded.get(j).length;
+			}
+			old.clear();
+			encoded.clear();
+		}
+		return bytes;
+	}
+
+	@Override
+	public String parseSender(String line) {
+		return ClientController.getStringUpToChar(line, 11, ':');
+	}
+
+}//class ServerHotPaths
@@ -0,0 +1,41 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Broadcasting one message to a room (what Server.sendToAll() used to do for everyone)
+ * with 10, 1 000 and 10 000 members. Emptying the queues and encoding the message for
+ * every member are included, as every queued message is taken out and written by a
+ * writer sooner or later. A third of the members each use the text, tagged and binary
+ * formats, so the message is encoded once per format and shared by the rest.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+	@Param({"10", "1000", "10000"})
+	public int sinks;
+
+	private HotPaths paths;
+
+	@Setup
+	public void setUp() {
+		paths = HotPaths.load();
+		paths.setUpFanOut(sinks);
+	}
+
+	@Benchmark
+	public int fanOut() {
+		return paths.fanOut();
+	}
+
+}//class FanOutBenchmark
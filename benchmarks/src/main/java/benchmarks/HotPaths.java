@@ -0,0 +1,75 @@
+package benchmarks;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * The hot paths being measured. The Server and the client live in the default package,
+ * which JMH benchmarks cannot use and Java code in a package cannot import, so the
+ * benchmarks reach them through this interface. It's implemented by ServerHotPaths in
+ * the default package and every call site has only that one implementation, so the
+ * JIT inlines the calls and they cost nothing in the results.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public interface HotPaths {
+
+	/**
+	 * Creates a room with a number of members, each with its own outbound queue, using
+	 * the text, tagged and binary formats in turn
+	 */
+	void setUpFanOut(int sinks);
+
+	/**
+	 * Sends a message to every member of the room, then empties their queues and
+	 * encodes what they got in their formats like their writers would
+	 * @return Number of bytes encoded
+	 */
+	int fanOut();
+
+	/**
+	 * Server.getTime()
+	 */
+	String getTime();
+
+	/**
+	 * Stamps the next message into a buffer, see Stamper
+	 * @return Number of bytes written
+	 */
+	int stamp(ByteBuffer out);
+
+	/**
+	 * Builds the line of a message as a String, see Message.toString()
+	 */
+	String messageToString();
+
+	/**
+	 * Creates a history with a number of messages; older ones are spilled to the directory
+	 */
+	void setUpHistory(int size, File dir);
+
+	/**
+	 * Reads and encodes the whole history the way a newbie's writer does after
+	 * Server.sendAllMessagesToNewbie()
+	 * @return Number of bytes encoded
+	 */
+	long replay();
+
+	/**
+	 * ClientController.getStringUpToChar(line, 11, ':')
+	 */
+	String parseSender(String line);
+
+	/**
+	 * Creates the implementation
+	 */
+	static HotPaths load() {
+		try {
+			return (HotPaths) Class.forName("ServerHotPaths").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("ServerHotPaths is missing", e);
+		}
+	}
+
+}//interface HotPaths
@@ -0,0 +1,25 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Runs the benchmarks like org.openjdk.jmh.Main does, but writes the results as JSON to
+ * jmh-result.json unless -rf or -rff is given, so that results of different releases
+ * can be compared.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+public class Main {
+
+	public static void main(String[] args) throws Exception {
+		ArrayList<String> all = new ArrayList<String>(Arrays.asList(args));
+		if(!all.contains("-rf"))
+			all.addAll(Arrays.asList("-rf", "json"));
+		if(!all.contains("-rff"))
+			all.addAll(Arrays.asList("-rff", "jmh-result.json"));
+		org.openjdk.jmh.Main.main(all.toArray(new String[0]));
+	}
+
+}//class Main
@@ -0,0 +1,39 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ClientController.getStringUpToChar(), which the client calls for every received
+ * message to find out who sent it, with a short and a long nickname.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+	@Param({"Lukasz", "SomebodyWithAVeryLongNicknameIndeed"})
+	public String nickname;
+
+	private HotPaths paths;
+	private String line;
+
+	@Setup
+	public void setUp() {
+		paths = HotPaths.load();
+		line = "(12:34:01) "+nickname+": Example message with a few words in it";
+	}
+
+	@Benchmark
+	public String getStringUpToChar() {
+		return paths.parseSender(line);
+	}
+
+}//class ParseBenchmark
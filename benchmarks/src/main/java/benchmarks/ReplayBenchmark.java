@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Replaying the whole history to a newbie, as its writer does after
+ * Server.sendAllMessagesToNewbie(), for histories of different sizes. The largest one
+ * doesn't fit in memory with the default options, so part of it is read from disk.
+ * The --sync-max cap is not applied, to show how the cost grows with the history.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public int size;
+
+	private HotPaths paths;
+	private File dir;
+
+	@Setup
+	public void setUp() {
+		dir = new File(System.getProperty("java.io.tmpdir"), "replay-"+System.nanoTime());
+		paths = HotPaths.load();
+		paths.setUpHistory(size, dir);
+	}
+
+	@TearDown
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if(files != null){
+			for(File f : files){
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public long replay() {
+		return paths.replay();
+	}
+
+}//class ReplayBenchmark
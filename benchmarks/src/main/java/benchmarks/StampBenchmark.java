@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Putting the time in front of a message: Server.getTime(), stamping straight into a
+ * buffer (Stamper) and building the line as a String (Message.toString()). Run with
+ * "-prof gc" to see the allocation rate of each.
+ *
+ * @author Lukasz Smigielski
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StampBenchmark {
+
+	private HotPaths paths;
+	private ByteBuffer out;
+
+	@Setup
+	public void setUp() {
+		paths = HotPaths.load();
+		out = ByteBuffer.allocate(4096);
+	}
+
+	@Benchmark
+	public String getTime() {
+		return paths.getTime();
+	}
+
+	@Benchmark
+	public int stamp() {
+		return paths.stamp(out);
+	}
+
+	@Benchmark
+	public String messageToString() {
+		return paths.messageToString();
+	}
+
+}//class StampBenchmark